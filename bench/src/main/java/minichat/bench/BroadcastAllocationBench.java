@@ -0,0 +1,96 @@
+package minichat.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import minichat.server.SessionOutput;
+import minichat.server.SessionRegistry;
+
+/**
+ * Bytes allocated per SessionRegistry broadcast, measured on the calling thread
+ * with com.sun.management.ThreadMXBean. Sessions are no-op sinks, so only the
+ * registry's own work is counted: a chat line, a server notice, and a private
+ * message (one line, written to target and sender).
+ *
+ * Usage: java -cp jar/bench.jar minichat.bench.BroadcastAllocationBench [sessions...]
+ */
+public class BroadcastAllocationBench {
+    private static final int WARMUP = 20_000;
+    private static final int MEASURED = 20_000;
+
+    // Accepts everything and keeps nothing
+    static final class NullOutput implements SessionOutput {
+        @Override
+        public void println(String line) {
+        }
+
+        @Override
+        public void print(String text) {
+        }
+
+        @Override
+        public void send(ByteBuffer data) {
+        }
+
+        @Override
+        public boolean checkError() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {10, 100, 1000, 5000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        System.out.printf("%10s %18s %14s %14s %14s%n",
+                "sessions", "bytes/broadcast", "ns/broadcast", "bytes/notice", "bytes/private");
+        for (int size : sizes) {
+            SessionRegistry registry = new SessionRegistry();
+            for (int i = 0; i < size; i++) {
+                registry.add("user" + i, new NullOutput(), Instant.now());
+            }
+
+            int iterations = Math.max(200, MEASURED / Math.max(1, size / 100));
+            Runnable chat = () -> registry.broadcastFrom("user0", "hello everyone");
+            Runnable notice = () -> registry.broadcastServer(SessionRegistry.DEFAULT_ROOM, "server restarting soon");
+            Runnable direct = () -> registry.sendDirect("user0", "user1", "psst");
+            for (int i = 0; i < WARMUP; i++) {
+                chat.run();
+                notice.run();
+                direct.run();
+            }
+
+            long started = System.nanoTime();
+            long chatBytes = allocated(threads, threadId, chat, iterations);
+            long elapsed = System.nanoTime() - started;
+            long noticeBytes = allocated(threads, threadId, notice, iterations);
+            long directBytes = allocated(threads, threadId, direct, iterations);
+
+            System.out.printf("%10d %18d %14d %14d %14d%n", size, chatBytes, elapsed / iterations,
+                    noticeBytes, directBytes);
+        }
+    }
+
+    // Bytes allocated per call of task on this thread
+    private static long allocated(com.sun.management.ThreadMXBean threads, long threadId,
+                                  Runnable task, int iterations) {
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / iterations;
+    }
+}
@@ -0,0 +1,208 @@
+package minichat.bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import minichat.server.IoMode;
+import minichat.server.OutboundConfig;
+import minichat.server.OverflowPolicy;
+import minichat.server.Server;
+
+/**
+ * Write system calls and delivery latency for bursts of chat into one room, with and without
+ * write coalescing. An in-process server fans each message out to every member over loopback;
+ * one selector thread reads all members and timestamps each line against the send time
+ * carried in the message. Write calls come from /proc/self/io (Linux), minus the sender's own.
+ *
+ * Usage: java -cp jar/bench.jar minichat.bench.CoalescingBench <threads|virtual|nio> [members] [flush ms...]
+ */
+public class CoalescingBench {
+    private static final int BURSTS = 40;
+    private static final int BURST_SIZE = 100;
+    private static final long BURST_GAP_MILLIS = 20;
+    private static final String SENDER = "bench";
+    // Room for a whole burst per member, so a slow reader measures latency instead of disconnects
+    private static final int QUEUE_CAPACITY = 4096;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java minichat.bench.CoalescingBench <threads|virtual|nio> [members] [flush ms...]");
+            System.exit(1);
+        }
+        // Keep a few hundred welcome and teardown lines off the console
+        if (System.getProperty("minichat.log.level") == null) {
+            System.setProperty("minichat.log.level", "error");
+        }
+        IoMode mode = IoMode.parse(args[0]);
+        int members = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        double[] delays = {0, 1, 2, 5};
+        if (args.length > 2) {
+            delays = new double[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                delays[i - 2] = Double.parseDouble(args[i]);
+            }
+        }
+
+        System.out.printf("%s, %d members, %d bursts of %d messages%n", mode.name().toLowerCase(), members, BURSTS, BURST_SIZE);
+        System.out.printf("%9s %16s %10s %10s %10s%n", "flush ms", "writes/delivery", "p50 us", "p99 us", "max us");
+        for (double delay : delays) {
+            run(mode, members, delay, false);  // warm-up
+            run(mode, members, delay, true);
+        }
+        System.exit(0);
+    }
+
+    private static void run(IoMode mode, int members, double flushMillis, boolean report) throws Exception {
+        OutboundConfig config = new OutboundConfig(QUEUE_CAPACITY, OverflowPolicy.DISCONNECT,
+                Math.round(flushMillis * 1000), OutboundConfig.DEFAULT_FLUSH_BYTES);
+        Server server = new Server(0, mode, config);
+        Thread acceptor = new Thread(server::start, "bench-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Selector selector = Selector.open();
+        List<SocketChannel> channels = new ArrayList<>();
+        SocketChannel sender = null;
+        for (int i = 0; i <= members; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+            String name = i == 0 ? SENDER : "member" + i;
+            channel.write(ByteBuffer.wrap(("username = " + name + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new StringBuilder());
+            channels.add(channel);
+            if (i == 0) {
+                sender = channel;
+            }
+        }
+
+        // Let the welcome broadcasts settle before measuring
+        List<Long> latencies = new ArrayList<>();
+        while (readAll(selector, 200, latencies) > 0) {
+            latencies.clear();
+        }
+
+        Reader reader = new Reader(selector, (long) BURSTS * BURST_SIZE * (members + 1));
+        Thread readerThread = new Thread(reader, "bench-reader");
+        readerThread.start();
+
+        long writesBefore = writeSyscalls();
+        for (int burst = 0; burst < BURSTS; burst++) {
+            for (int i = 0; i < BURST_SIZE; i++) {
+                ByteBuffer line = ByteBuffer.wrap((System.nanoTime() + "\n").getBytes(StandardCharsets.UTF_8));
+                // Non-blocking (the channel is registered with the reader's selector), but a
+                // line this short always fits in the socket buffer at once
+                while (line.hasRemaining()) {
+                    sender.write(line);
+                }
+            }
+            Thread.sleep(BURST_GAP_MILLIS);
+        }
+        readerThread.join(TimeUnit.SECONDS.toMillis(30));
+        long serverWrites = writeSyscalls() - writesBefore - (long) BURSTS * BURST_SIZE;
+
+        if (report) {
+            long[] sorted = reader.latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            long deliveries = sorted.length;
+            System.out.printf("%9s %16.3f %10d %10d %10d%n", flushMillis == 0 ? "0 (off)" : String.valueOf(flushMillis),
+                    deliveries == 0 ? 0 : serverWrites / (double) deliveries,
+                    percentile(sorted, 0.50) / 1000, percentile(sorted, 0.99) / 1000,
+                    sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000);
+            if (deliveries < (long) BURSTS * BURST_SIZE * (members + 1)) {
+                System.out.println("          (only " + deliveries + " deliveries arrived)");
+            }
+        }
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        selector.close();
+        server.shutdown();
+    }
+
+    // Reads until the expected number of chat lines arrived (or nothing arrives for a while)
+    static final class Reader implements Runnable {
+        final Selector selector;
+        final long expected;
+        final List<Long> latencies = new ArrayList<>();
+
+        Reader(Selector selector, long expected) {
+            this.selector = selector;
+            this.expected = expected;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (latencies.size() < expected && readAll(selector, 2000, latencies) > 0) {
+                    // Keep reading
+                }
+            } catch (IOException e) {
+                System.err.println("Reader failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // One select round: read every ready member, collect latencies of complete chat lines.
+    // Returns the number of bytes read.
+    private static int readAll(Selector selector, long timeoutMillis, List<Long> latencies) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        int total = 0;
+        if (selector.select(timeoutMillis) == 0) {
+            return 0;
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            SocketChannel channel = (SocketChannel) key.channel();
+            StringBuilder pending = (StringBuilder) key.attachment();
+            int count;
+            while ((count = channel.read(buffer)) > 0) {
+                total += count;
+                long now = System.nanoTime();
+                pending.append(new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1));
+                buffer.clear();
+                int end;
+                while ((end = pending.indexOf("\n")) >= 0) {
+                    String line = pending.substring(0, end);
+                    pending.delete(0, end + 1);
+                    int marker = line.indexOf(" " + SENDER + ": ");
+                    if (marker >= 0) {
+                        latencies.add(now - Long.parseLong(line.substring(marker + SENDER.length() + 3).trim()));
+                    }
+                }
+            }
+            if (count < 0) {
+                key.cancel();
+            }
+        }
+        return total;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    // Write-type system calls made by this process so far (write, writev, sendto...), -1 if unknown
+    private static long writeSyscalls() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+                if (line.startsWith("syscw:")) {
+                    return Long.parseLong(line.substring(6).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,111 @@
+package minichat.bench;
+
+import java.io.IOException;
+import minichat.client.ServerConnection;
+import minichat.protocol.Frame;
+import minichat.protocol.Protocol;
+import minichat.server.IoMode;
+import minichat.server.OutboundConfig;
+import minichat.server.Server;
+
+/**
+ * Regression check for compressed clients moving between rooms. Every compressed member that
+ * joins a room starts its deflate stream over under a new id, so a client that keeps a fixed
+ * number of inflaters ends up dropping the one for its own stream, and the next private
+ * message fails to inflate. Two compressed clients join more rooms than any such limit would
+ * allow, chatting in each, then exchange a private message and a Rooms reply on the
+ * recipient's own stream. Exits with 1 if anything fails to arrive or to inflate.
+ *
+ * Usage: java -cp jar/bench.jar minichat.bench.CompressedJoinCheck [threads|virtual|nio] [rooms]
+ */
+public class CompressedJoinCheck {
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        IoMode mode = args.length > 0 ? IoMode.parse(args[0]) : IoMode.NIO;
+        int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        System.setProperty("minichat.compress", "true");
+
+        Server server = new Server(0, mode, OutboundConfig.fromSystemProperties());
+        Thread acceptor = new Thread(server::start, "check-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        boolean ok;
+        try (ServerConnection alice = connect(server, "alice");
+             ServerConnection bob = connect(server, "bob")) {
+            for (int i = 0; i < rooms; i++) {
+                String room = "room" + i;
+                join(bob, room);
+                join(alice, room);
+                bob.send("hello " + i);
+                await(bob, Protocol.MESSAGE, "hello " + i);
+                await(alice, Protocol.MESSAGE, "hello " + i);
+            }
+            bob.send("/msg alice psst");
+            await(alice, Protocol.PRIVATE_MESSAGE, "psst");
+            alice.send("Rooms");
+            await(alice, Protocol.ROOM_LIST, null);
+            ok = true;
+        } catch (IOException e) {
+            System.out.println("FAILED: " + e.getMessage());
+            ok = false;
+        } finally {
+            server.shutdown();
+        }
+        if (ok) {
+            System.out.println("OK: " + rooms + " rooms joined, private message and Rooms reply inflated");
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static ServerConnection connect(Server server, String name) throws IOException {
+        ServerConnection connection = new ServerConnection("127.0.0.1", server.getPort());
+        connection.getSocket().setSoTimeout(TIMEOUT_MILLIS);
+        connection.handshake();
+        if (!connection.isBinary()) {
+            throw new IOException("Server did not switch " + name + " to binary framing");
+        }
+        connection.register(name);
+        await(connection, Protocol.PRESENCE, null);
+        return connection;
+    }
+
+    // The "Now chatting in" notice is the last thing a join sends the one joining
+    private static void join(ServerConnection connection, String room) throws IOException {
+        connection.send("Join " + room);
+        await(connection, Protocol.NOTICE, "Now chatting in " + room);
+    }
+
+    // Read until a frame of the type arrives (whose last string field is text, unless null)
+    private static void await(ServerConnection connection, byte type, String text) throws IOException {
+        while (true) {
+            Frame frame = connection.readFrame();
+            if (frame == null) {
+                throw new IOException("Connection closed while waiting for frame type " + type);
+            }
+            if (frame.type() == type && (text == null || text.equals(lastString(frame)))) {
+                return;
+            }
+        }
+    }
+
+    private static String lastString(Frame frame) throws IOException {
+        switch (frame.type()) {
+            case Protocol.MESSAGE:
+                frame.getLong();
+                frame.getString();
+                return frame.getString();
+            case Protocol.PRIVATE_MESSAGE:
+                frame.getLong();
+                frame.getString();
+                frame.getString();
+                return frame.getString();
+            case Protocol.NOTICE:
+                frame.getLong();
+                return frame.getString();
+            default:
+                return null;
+        }
+    }
+}
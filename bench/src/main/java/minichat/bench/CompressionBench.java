@@ -0,0 +1,175 @@
+package minichat.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import minichat.protocol.Protocol;
+import minichat.server.DeflatingOutput;
+import minichat.server.OutboundConfig;
+import minichat.server.OverflowPolicy;
+import minichat.server.SessionOutput;
+import minichat.server.SessionRegistry;
+
+/**
+ * Bytes on the wire per recipient versus CPU per broadcast, for one room of chatty text:
+ * text lines, binary frames, binary frames deflated in each member's own stream, and deflated
+ * once in the room's shared stream. One member's compressed stream is inflated afterwards
+ * to check that it decodes.
+ *
+ * Usage: java [-Dminichat.compression.level=1..9] -cp jar/bench.jar minichat.bench.CompressionBench [members...]
+ */
+public class CompressionBench {
+    private static final int MESSAGES = 5_000;
+    // Caps messages x members, per-connection deflate in big rooms is slow by design
+    private static final int MAX_DELIVERIES = 1_000_000;
+    private static final String[] WORDS = {
+            "hey", "anyone", "here", "lol", "what", "is", "the", "best", "way", "to", "learn", "java",
+            "sockets", "server", "room", "chat", "i", "think", "you", "should", "try", "again", "later",
+            "brb", "coffee", "ok", "sure", "thanks", "nice", "weekend", "plans", "game", "tonight", "yes",
+            "no", "maybe", "did", "see", "that", "new", "movie", "so", "good", "haha", "same", "here"
+    };
+
+    // Counts what would have been written, optionally keeping it
+    static final class CountingOutput implements SessionOutput {
+        long bytes;
+        final List<byte[]> kept;
+
+        CountingOutput(boolean keep) {
+            kept = keep ? new ArrayList<>() : null;
+        }
+
+        @Override
+        public void println(String line) {
+            print(line + "\n");
+        }
+
+        @Override
+        public void print(String text) {
+            bytes += text.length();
+        }
+
+        @Override
+        public void send(ByteBuffer data) {
+            bytes += data.remaining();
+            if (kept != null) {
+                byte[] copy = new byte[data.remaining()];
+                data.duplicate().get(copy);
+                kept.add(copy);
+            }
+        }
+
+        @Override
+        public boolean checkError() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    enum Mode {
+        TEXT, BINARY, DEFLATE_PER_CONNECTION, DEFLATE_SHARED
+    }
+
+    public static void main(String[] args) throws DataFormatException {
+        int[] sizes = {10, 100, 1000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("compression level " + System.getProperty("minichat.compression.level", "6 (default)"));
+        System.out.printf("%8s %24s %16s %16s%n", "members", "mode", "bytes/recipient", "cpu us/bcast");
+        for (int size : sizes) {
+            String[] messages = corpus(Math.max(200, Math.min(MESSAGES, MAX_DELIVERIES / size)));
+            for (Mode mode : Mode.values()) {
+                run(size, mode, messages, false);  // warm-up
+                run(size, mode, messages, true);
+            }
+        }
+    }
+
+    private static void run(int size, Mode mode, String[] messages, boolean report) throws DataFormatException {
+        // Shared streams are only used when queues never drop, so the policy picks the variant
+        OverflowPolicy policy = mode == Mode.DEFLATE_PER_CONNECTION ? OverflowPolicy.DROP_NEW : OverflowPolicy.DISCONNECT;
+        SessionRegistry registry = new SessionRegistry(new OutboundConfig(OutboundConfig.DEFAULT_CAPACITY, policy));
+
+        CountingOutput[] outputs = new CountingOutput[size];
+        List<SessionOutput> writers = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            outputs[i] = new CountingOutput(i == 0 && report && mode.name().startsWith("DEFLATE"));
+            SessionOutput writer = mode.name().startsWith("DEFLATE") ? new DeflatingOutput(outputs[i]) : outputs[i];
+            writers.add(writer);
+            registry.add("user" + i, writer, Instant.now(), mode != Mode.TEXT);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < messages.length; i++) {
+            registry.broadcastFrom("user" + (i % Math.min(size, 50)), messages[i]);
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+
+        if (report) {
+            System.out.printf("%8d %24s %16.1f %16.2f%n", size, mode.name().toLowerCase(),
+                    outputs[0].bytes / (double) messages.length, cpu / 1000.0 / messages.length);
+            if (outputs[0].kept != null) {
+                int frames = inflateAll(outputs[0].kept);
+                if (frames != messages.length) {
+                    throw new IllegalStateException("Decoded " + frames + " frames, expected " + messages.length);
+                }
+            }
+        }
+        for (SessionOutput writer : writers) {
+            writer.close();
+        }
+    }
+
+    // Inflate a recorded stream of DEFLATED frames the way a client does, returns the frames found
+    private static int inflateAll(List<byte[]> frames) throws DataFormatException {
+        Map<Integer, Inflater> inflaters = new HashMap<>();
+        byte[] out = new byte[64 * 1024];
+        int count = 0;
+        for (byte[] frame : frames) {
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            if (buffer.get() != Protocol.DEFLATED) {
+                throw new IllegalStateException("Expected a DEFLATED frame");
+            }
+            buffer.getInt();
+            Inflater inflater = inflaters.computeIfAbsent(buffer.getInt(), id -> new Inflater(true));
+            inflater.setInput(buffer);
+            int length = inflater.inflate(out);
+            for (int offset = 0; offset < length; count++) {
+                offset += Protocol.HEADER_BYTES + ByteBuffer.wrap(out, offset + 1, 4).getInt();
+            }
+        }
+        for (Inflater inflater : inflaters.values()) {
+            inflater.end();
+        }
+        return count;
+    }
+
+    private static String[] corpus(int count) {
+        Random random = new Random(42);
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            int words = 3 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            messages[i] = sb.toString();
+        }
+        return messages;
+    }
+}
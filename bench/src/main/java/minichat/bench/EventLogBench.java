@@ -0,0 +1,115 @@
+package minichat.bench;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CountDownLatch;
+import minichat.server.EventLog;
+import minichat.server.LogLevel;
+
+/**
+ * Time spent in the logging call by handler threads, for the chat line the server logs per
+ * message: the old LocalDateTime + System.out.println (an autoflushing PrintStream, here on a
+ * temp file) versus EventLog writing to a rolling file in the same directory.
+ *
+ * Usage: java -cp jar/bench.jar minichat.bench.EventLogBench [threads...]
+ */
+public class EventLogBench {
+    private static final int EVENTS_PER_THREAD = 200_000;
+    private static final long ROLL_BYTES = 64L * 1024 * 1024;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    interface Logger {
+        void chat(String username, String text);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 4, 16};
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        Path dir = Files.createTempDirectory("minichat-log-bench");
+        System.out.printf("%8s %14s %14s %14s%n", "threads", "logger", "ns/call", "events/s");
+        for (int threads : threadCounts) {
+            for (int round = 0; round < 2; round++) {
+                boolean report = round == 1;  // first round is warm-up
+
+                File file = dir.resolve("println.log").toFile();
+                try (PrintStream stream = new PrintStream(new FileOutputStream(file), true, "UTF-8")) {
+                    run(threads, "println", report, (username, text) -> {
+                        String timestamp = LocalDateTime.now().format(TIME_FORMAT);
+                        stream.println(timestamp + " " + username + ": " + text);
+                    }, () -> { });
+                }
+
+                EventLog log = EventLog.rollingFile(LogLevel.INFO, EventLog.DEFAULT_CAPACITY, false,
+                        dir.resolve("event.log"), ROLL_BYTES, 1);
+                run(threads, "eventlog", report, (username, text) -> log.info("{}: {}", username, text), log::close);
+
+                EventLog lossy = EventLog.rollingFile(LogLevel.INFO, EventLog.DEFAULT_CAPACITY, true,
+                        dir.resolve("lossy.log"), ROLL_BYTES, 1);
+                run(threads, "eventlog-lossy", report, (username, text) -> lossy.info("{}: {}", username, text), lossy::close);
+                if (report && lossy.getDroppedCount() > 0) {
+                    System.out.printf("%8s %14s %14d dropped%n", "", "", lossy.getDroppedCount());
+                }
+            }
+        }
+
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.toFile().delete();
+    }
+
+    // Measures the callers only: the close action (draining the log) is not counted
+    private static void run(int threads, String name, boolean report, Logger logger, Runnable close)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        long[] nanos = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            String username = "user" + t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long begin = System.nanoTime();
+                for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+                    logger.chat(username, "hey anyone here, message number " + i);
+                }
+                nanos[id] = System.nanoTime() - begin;
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long wall = System.nanoTime() - begin;
+        close.run();
+
+        if (report) {
+            long total = 0;
+            for (long n : nanos) {
+                total += n;
+            }
+            long events = (long) threads * EVENTS_PER_THREAD;
+            System.out.printf("%8d %14s %14.0f %14.0f%n", threads, name,
+                    total / (double) events, events / (wall / 1e9));
+        }
+    }
+}
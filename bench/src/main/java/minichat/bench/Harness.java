@@ -0,0 +1,148 @@
+package minichat.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+/**
+ * A small JMH-style runner for the hot-path benchmarks, in one JVM and without
+ * dependencies. Each benchmark runs timed warm-up iterations, then timed measured
+ * ones, on one or more threads. What an operation returns is summed into a sink,
+ * so the JIT cannot drop the work. Reports the average time per operation with
+ * its standard deviation over the measured iterations, and the bytes each
+ * operation allocated.
+ *
+ * Configured by system properties:
+ *   -Dbench.warmup=<n>       warm-up iterations (default 3)
+ *   -Dbench.iterations=<n>   measured iterations (default 5)
+ *   -Dbench.ms=<ms>          length of one iteration (default 1000)
+ */
+final class Harness {
+    // One invocation of the code under test, returns something derived from its result
+    interface Operation {
+        long run();
+    }
+
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+    private static final int ITERATIONS = Math.max(1, Integer.getInteger("bench.iterations", 5));
+    private static final long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("bench.ms", 1000));
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final List<Pattern> includes = new ArrayList<>();
+    private final AtomicLong sink = new AtomicLong();
+
+    // Benchmarks whose name matches one of the patterns run, all of them if there are none
+    Harness(String[] includes) {
+        for (String include : includes) {
+            this.includes.add(Pattern.compile(include));
+        }
+        System.out.printf("%-14s %-28s %7s %14s %12s %10s%n", "Benchmark", "Params", "Threads", "ns/op", "stdev", "B/op");
+    }
+
+    boolean includes(String benchmark) {
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (Pattern include : includes) {
+            if (include.matcher(benchmark).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Run on the given number of threads, each with its own operation from setup
+    void run(String benchmark, String params, int threads, IntFunction<Operation> setup) throws InterruptedException {
+        Operation[] operations = new Operation[threads];
+        for (int i = 0; i < threads; i++) {
+            operations[i] = setup.apply(i);
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(operations);
+        }
+        double[] nanosPerOp = new double[ITERATIONS];
+        long ops = 0;
+        long allocated = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long[] measured = iteration(operations);
+            nanosPerOp[i] = (double) measured[2] / measured[0];
+            ops += measured[0];
+            allocated += measured[1];
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value / ITERATIONS;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / Math.max(1, ITERATIONS - 1);
+        }
+        System.out.printf("%-14s %-28s %7d %14.1f %12.1f %10d%n",
+                benchmark, params, threads, mean, Math.sqrt(variance), allocated / ops);
+    }
+
+    // One timed iteration on all threads at once: operations, bytes allocated, and thread-nanos
+    // spent (wall time times threads, so ns/op is the average latency of one call)
+    private long[] iteration(Operation[] operations) throws InterruptedException {
+        int threads = operations.length;
+        long[] ops = new long[threads];
+        long[] allocated = new long[threads];
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] window = new long[2];
+
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            workers[t] = new Thread(() -> {
+                Operation operation = operations[index];
+                long threadId = Thread.currentThread().getId();
+                ready.countDown();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long deadline = window[0] + ITERATION_NANOS;
+                long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+                long count = 0;
+                long consumed = 0;
+                do {
+                    // Check the clock every few calls, the cheapest operations take ~100 ns
+                    for (int i = 0; i < 16; i++) {
+                        consumed += operation.run();
+                    }
+                    count += 16;
+                } while (System.nanoTime() < deadline);
+                allocated[index] = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+                ops[index] = count;
+                sink.addAndGet(consumed);
+            }, "bench-" + t);
+            workers[t].start();
+        }
+
+        ready.await();
+        window[0] = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        window[1] = System.nanoTime();
+
+        long totalOps = 0;
+        long totalAllocated = 0;
+        for (int t = 0; t < threads; t++) {
+            totalOps += ops[t];
+            totalAllocated += allocated[t];
+        }
+        return new long[] {totalOps, totalAllocated, (window[1] - window[0]) * threads};
+    }
+}
@@ -0,0 +1,144 @@
+package minichat.bench;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import minichat.server.ClientHandler;
+import minichat.server.SessionOutput;
+import minichat.server.SessionRegistry;
+
+/**
+ * The server's hot paths, timed with Harness. Sessions write into in-memory sinks,
+ * so the numbers are the registry's own work, not the kernel's:
+ *
+ *   broadcast     broadcastFrom to a room, by session count and message length
+ *   churn         add then remove of a user, by room size and threads contending
+ *   userList      one AllUsers page, by room size and the requester's wire format
+ *   usernameLine  ClientHandler's "username = <name>" check on a typical line
+ *
+ * Usage: java [-Dbench.ms=1000] -cp jar/bench.jar minichat.bench.HotPathBench [benchmark regex...]
+ */
+public class HotPathBench {
+    // Counts the bytes it is given and keeps nothing
+    static final class MemorySink implements SessionOutput {
+        long bytes;
+
+        @Override
+        public void println(String line) {
+            bytes += line.length() + 1;
+        }
+
+        @Override
+        public void print(String text) {
+            bytes += text.length();
+        }
+
+        @Override
+        public void send(ByteBuffer data) {
+            bytes += data.remaining();
+        }
+
+        @Override
+        public boolean checkError() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (System.getProperty("minichat.log.level") == null) {
+            System.setProperty("minichat.log.level", "error");
+        }
+        Harness harness = new Harness(args);
+
+        if (harness.includes("broadcast")) {
+            for (int sessions : new int[] {10, 1000, 10000}) {
+                for (int chars : new int[] {16, 256, 4096}) {
+                    broadcast(harness, sessions, chars);
+                }
+            }
+        }
+        if (harness.includes("churn")) {
+            for (int members : new int[] {100, 10000}) {
+                for (int threads : new int[] {1, 4}) {
+                    churn(harness, members, threads);
+                }
+            }
+        }
+        if (harness.includes("userList")) {
+            for (int members : new int[] {100, 1000, 10000}) {
+                for (boolean binary : new boolean[] {false, true}) {
+                    userList(harness, members, binary);
+                }
+            }
+        }
+        if (harness.includes("usernameLine")) {
+            usernameLine(harness, "registration", "username = alice");
+            usernameLine(harness, "chat", "did anyone see the game last night?");
+            usernameLine(harness, "chat-4k", "x".repeat(4096));
+        }
+        System.exit(0);
+    }
+
+    private static SessionRegistry room(int members, boolean firstBinary) {
+        SessionRegistry registry = new SessionRegistry();
+        for (int i = 0; i < members; i++) {
+            registry.add("user" + i, new MemorySink(), Instant.now(), firstBinary && i == 0);
+        }
+        return registry;
+    }
+
+    private static void broadcast(Harness harness, int sessions, int chars) throws InterruptedException {
+        SessionRegistry registry = room(sessions, false);
+        String text = "m".repeat(chars);
+        harness.run("broadcast", "sessions=" + sessions + " chars=" + chars, 1, thread -> () -> {
+            registry.broadcastFrom("user0", text);
+            return 1;
+        });
+        registry.closeAll();
+    }
+
+    // Each thread cycles through its own names in the shared lobby, so threads contend on
+    // the room and the name map but never collide on a name
+    private static void churn(Harness harness, int members, int threads) throws InterruptedException {
+        SessionRegistry registry = room(members, false);
+        harness.run("churn", "members=" + members, threads, thread -> {
+            String[] names = new String[64];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "churn" + thread + "-" + i;
+            }
+            MemorySink sink = new MemorySink();
+            return new Harness.Operation() {
+                private int next;
+
+                @Override
+                public long run() {
+                    String name = names[next++ & (names.length - 1)];
+                    boolean added = registry.add(name, sink, Instant.EPOCH);
+                    registry.remove(name, sink);
+                    return added ? 1 : 0;
+                }
+            };
+        });
+        registry.closeAll();
+    }
+
+    private static void userList(Harness harness, int members, boolean binary) throws InterruptedException {
+        SessionRegistry registry = room(members, binary);
+        MemorySink requester = new MemorySink();
+        harness.run("userList", "members=" + members + (binary ? " binary" : " text"), 1, thread -> () -> {
+            registry.sendUserList("user0", requester);
+            return requester.bytes;
+        });
+        registry.closeAll();
+    }
+
+    private static void usernameLine(Harness harness, String kind, String line) throws InterruptedException {
+        harness.run("usernameLine", kind, 1, thread -> () -> {
+            String name = ClientHandler.usernameFrom(line);
+            return name != null ? name.length() : 0;
+        });
+    }
+}
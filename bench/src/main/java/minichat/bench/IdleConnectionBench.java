@@ -0,0 +1,121 @@
+package minichat.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import minichat.server.IoMode;
+import minichat.server.Server;
+
+/**
+ * Memory cost per idle connection for each server I/O mode.
+ * Starts a server in-process, opens N idle client connections over loopback and
+ * reports heap, thread and resident memory deltas divided by N.
+ *
+ * Usage: java -cp jar/bench.jar minichat.bench.IdleConnectionBench <threads|virtual|nio> <connections>
+ *
+ * Connections are left unregistered: every registration broadcasts a welcome to all
+ * users, so registering N clients costs O(N^2) writes without changing the idle footprint.
+ * Client channels live in the same process (no threads, a few hundred bytes each) and
+ * are included in the numbers. Run virtual mode on Java 21+, and raise `ulimit -n`
+ * above 2 * N since both ends of every connection are in this process.
+ */
+public class IdleConnectionBench {
+
+    // Point-in-time memory readings
+    static final class Snapshot {
+        final long heapBytes;
+        final long rssBytes;
+        final int threads;
+
+        private Snapshot(long heapBytes, long rssBytes, int threads) {
+            this.heapBytes = heapBytes;
+            this.rssBytes = rssBytes;
+            this.threads = threads;
+        }
+
+        static Snapshot take() throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(200);
+            }
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            return new Snapshot(heap, readRss(), threads);
+        }
+
+        // VmRSS from /proc (Linux only, -1 elsewhere)
+        private static long readRss() {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("\\D+", "")) * 1024;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Not available
+            }
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: java minichat.bench.IdleConnectionBench <threads|virtual|nio> <connections>");
+            System.exit(1);
+        }
+        IoMode mode = IoMode.parse(args[0]);
+        int target = Integer.parseInt(args[1]);
+
+        Server server = new Server(0, mode);
+        Thread acceptor = new Thread(server::start, "bench-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Snapshot before = Snapshot.take();
+
+        List<SocketChannel> clients = new ArrayList<>(target);
+        long started = System.nanoTime();
+        try {
+            for (int i = 0; i < target; i++) {
+                SocketChannel channel = SocketChannel.open();
+                // Spread source addresses over 127.0.0.x to stay clear of ephemeral port exhaustion
+                channel.bind(new InetSocketAddress("127.0.0." + (1 + i / 20000), 0));
+                channel.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+                clients.add(channel);
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            System.err.println("Stopped after " + clients.size() + " connections: " + e);
+        }
+        long connectMillis = (System.nanoTime() - started) / 1_000_000;
+
+        // Let handlers/event loops pick up every connection and send their prompt
+        Thread.sleep(2000);
+        Snapshot after = Snapshot.take();
+
+        int opened = clients.size();
+        System.out.println("mode:              " + mode.name().toLowerCase());
+        System.out.println("connections:       " + opened + " (" + connectMillis + " ms)");
+        System.out.println("threads:           " + before.threads + " -> " + after.threads);
+        report("heap", before.heapBytes, after.heapBytes, opened);
+        if (before.rssBytes >= 0) {
+            report("resident (RSS)", before.rssBytes, after.rssBytes, opened);
+        }
+
+        server.shutdown();
+        for (SocketChannel channel : clients) {
+            channel.close();
+        }
+        System.exit(0);
+    }
+
+    private static void report(String label, long before, long after, int connections) {
+        long delta = after - before;
+        System.out.printf("%-18s %,d KB total, %,d bytes/connection%n",
+                label + ":", delta / 1024, connections == 0 ? 0 : delta / connections);
+    }
+}
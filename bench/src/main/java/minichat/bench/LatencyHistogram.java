@@ -0,0 +1,78 @@
+package minichat.bench;
+
+// Log-linear latency histogram in nanoseconds: exact below 32 ns, then 16 buckets per power
+// of two, so any recorded value is reported within about 6%. Fixed size (960 counters), no
+// allocation per value. Not thread-safe: give each recording thread its own and merge them.
+final class LatencyHistogram {
+    private static final int LINEAR = 32;
+    private static final int PER_OCTAVE = 16;
+
+    private final long[] counts = new long[LINEAR + 58 * PER_OCTAVE];
+    private long total;
+    private long max;
+    private double sum;
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    // Smallest bucket value with at least fraction of the recorded values at or below it
+    long percentile(double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        // Shift that leaves the top five bits: 16..31
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return LINEAR + (shift - 1) * PER_OCTAVE + (int) (value >>> shift) - PER_OCTAVE;
+    }
+
+    // Largest value that falls into bucket index
+    private static long highest(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / PER_OCTAVE + 1;
+        long top = (index - LINEAR) % PER_OCTAVE + PER_OCTAVE;
+        return ((top + 1) << shift) - 1;
+    }
+}
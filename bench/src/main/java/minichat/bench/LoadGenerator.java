@@ -0,0 +1,578 @@
+package minichat.bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import minichat.server.ClusterConfig;
+import minichat.server.IoMode;
+import minichat.server.OutboundConfig;
+import minichat.server.Server;
+
+/**
+ * Headless load generator for capacity planning. Opens N connections over loopback (or to
+ * any host), registers a unique username on each, spreads them over rooms and has every
+ * client send chat at a fixed rate with sizes drawn from a distribution. Each message carries
+ * the time it was due to be sent, and a few selector threads read every connection and record
+ * end-to-end delivery latency into histograms. Reports throughput, latency percentiles,
+ * delivery ratio and disconnects.
+ *
+ * Sending is open-loop: messages are stamped with their scheduled time, not the time the
+ * write happened, so a server that falls behind shows up as latency instead of a lower rate.
+ * A message whose socket is still full from the previous one is skipped and counted.
+ * Speaks the text protocol, so it drives every I/O mode and any server version.
+ *
+ * Usage: java -cp jar/bench.jar minichat.bench.LoadGenerator <host:port[,host:port...] | threads|virtual|nio> [clients]
+ *
+ * The target is either running servers (the nodes of a cluster, clients spread round-robin)
+ * or an I/O mode to start one in-process. Configured by system properties:
+ *   -Dload.rate=<n>          messages per second per client (default 1, fractions work)
+ *   -Dload.size=<spec>       message bytes, "64" or weighted "16:70,256:25,4096:5" (default 64)
+ *   -Dload.rooms=<n>         rooms the clients are spread over (default 1, the lobby)
+ *   -Dload.seconds=<n>       measured seconds (default 30)
+ *   -Dload.warmup=<n>        seconds of load before measuring (default 5)
+ *   -Dload.readers=<n>       reading threads (default 2)
+ *   -Dload.senders=<n>       sending threads (default 1)
+ *   -Dload.nodes=<n>         in-process servers, linked as one cluster (default 1)
+ *
+ * Raise `ulimit -n` above N (2 * N for an in-process server).
+ */
+public class LoadGenerator {
+    private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "1"));
+    private static final String SIZES = System.getProperty("load.size", "64");
+    private static final int ROOMS = Math.max(1, Integer.getInteger("load.rooms", 1));
+    private static final int SECONDS = Math.max(1, Integer.getInteger("load.seconds", 30));
+    private static final int WARMUP = Math.max(0, Integer.getInteger("load.warmup", 5));
+    private static final int READERS = Math.max(1, Integer.getInteger("load.readers", 2));
+    private static final int SENDERS = Math.max(1, Integer.getInteger("load.senders", 1));
+    private static final int NODES = Math.max(1, Integer.getInteger("load.nodes", 1));
+    // Time in-process cluster nodes get to link up before clients connect
+    private static final long LINK_MILLIS = 1_500;
+    private static final long READY_TIMEOUT_MILLIS = 60_000;
+    // Time allowed after the last send for late deliveries
+    private static final long DRAIN_MILLIS = 5_000;
+    // Below the server's 64 KB line limit, with room for the name and time it adds
+    private static final int MAX_SIZE = 60_000;
+
+    // Per run, so chat from an earlier run or another generator on the same server is ignored
+    private static final String TAG = Integer.toHexString(ThreadLocalRandom.current().nextInt(0x1000, 0x10000));
+    // Starts the text of every generated message: "#<tag> <due nanos> xxxx..."
+    private static final byte[] MARKER = (": #" + TAG + " ").getBytes(StandardCharsets.US_ASCII);
+
+    // All generated messages, for the progress lines
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    // Only the measured ones
+    private static final LongAdder measuredSent = new LongAdder();
+    private static final LongAdder measuredDelivered = new LongAdder();
+    private static final LongAdder expected = new LongAdder();
+    private static final LongAdder stalled = new LongAdder();
+    private static final LongAdder bytesRead = new LongAdder();
+    private static final LongAdder disconnects = new LongAdder();
+    private static final LongAdder refused = new LongAdder();
+
+    private static volatile boolean running = true;
+    // Messages due in [measureStart, measureEnd) are the ones measured
+    private static volatile long measureStart = Long.MAX_VALUE;
+    private static volatile long measureEnd = Long.MAX_VALUE;
+
+    // One simulated client, read by one reader thread and written by one sender thread
+    static final class Connection {
+        final SocketChannel channel;
+        final String name;
+        final int room;
+        final String readyLine;
+        volatile boolean ready;
+        volatile boolean closed;
+
+        // Reader side: the start of a line that has not ended yet
+        byte[] partial = new byte[256];
+        int partialLength;
+
+        // Sender side: what is left of a message the socket did not take at once
+        ByteBuffer pending;
+
+        Connection(SocketChannel channel, String name, int room) {
+            this.channel = channel;
+            this.name = name;
+            this.room = room;
+            this.readyLine = room == 0 ? "Welcome " + name : "Now chatting in " + roomName(room);
+        }
+    }
+
+    // Message sizes by weight
+    static final class SizeDistribution {
+        final int[] sizes;
+        final long[] cumulative;
+
+        SizeDistribution(String spec) {
+            String[] entries = spec.split(",");
+            sizes = new int[entries.length];
+            cumulative = new long[entries.length];
+            long total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                sizes[i] = Math.min(MAX_SIZE, Integer.parseInt(parts[0].trim()));
+                total += parts.length > 1 ? Long.parseLong(parts[1].trim()) : 1;
+                cumulative[i] = total;
+            }
+        }
+
+        int next(Random random) {
+            long pick = (long) (random.nextDouble() * cumulative[cumulative.length - 1]);
+            for (int i = 0; i < cumulative.length; i++) {
+                if (pick < cumulative[i]) {
+                    return sizes[i];
+                }
+            }
+            return sizes[sizes.length - 1];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java minichat.bench.LoadGenerator <host:port[,host:port...] | threads|virtual|nio> [clients]");
+            System.exit(1);
+        }
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        SizeDistribution sizes = new SizeDistribution(SIZES);
+
+        List<Server> servers = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        String target;
+        if (args[0].lastIndexOf(':') > 0) {
+            for (String node : args[0].split(",")) {
+                int colon = node.lastIndexOf(':');
+                addresses.add(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+            }
+            target = args[0];
+        } else {
+            // Keep a line per registration off the console
+            if (System.getProperty("minichat.log.level") == null) {
+                System.setProperty("minichat.log.level", "error");
+            }
+            IoMode mode = IoMode.parse(args[0]);
+            List<String> nodes = NODES > 1 ? clusterAddresses(NODES) : Collections.emptyList();
+            for (int i = 0; i < NODES; i++) {
+                ClusterConfig cluster = null;
+                if (NODES > 1) {
+                    List<String> peers = new ArrayList<>(nodes);
+                    peers.remove(i);
+                    cluster = new ClusterConfig(nodes.get(i), peers);
+                }
+                Server server = new Server(0, mode, OutboundConfig.fromSystemProperties(), cluster);
+                Thread acceptor = new Thread(server::start, "load-server-" + i);
+                acceptor.setDaemon(true);
+                acceptor.start();
+                servers.add(server);
+                addresses.add(new InetSocketAddress("127.0.0.1", server.getPort()));
+            }
+            if (NODES > 1) {
+                Thread.sleep(LINK_MILLIS);
+            }
+            target = mode.name().toLowerCase() + " (in-process" + (NODES > 1 ? ", " + NODES + " nodes" : "") + ")";
+        }
+
+        Reader[] readers = new Reader[READERS];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Reader();
+            readers[i].thread.start();
+        }
+
+        List<Connection> connections = connect(addresses, clients, readers);
+        int[] roomSizes = awaitReady(connections);
+        int ready = 0;
+        for (int size : roomSizes) {
+            ready += size;
+        }
+
+        System.out.printf("target:       %s%n", target);
+        System.out.printf("clients:      %,d connected, %,d registered in %d room(s)%n", connections.size(), ready, ROOMS);
+        System.out.printf("offered:      %s msg/s per client, %,.0f msg/s, sizes %s%n", RATE, RATE * ready, SIZES);
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(SECONDS);
+
+        Thread[] senders = new Thread[SENDERS];
+        for (int i = 0; i < senders.length; i++) {
+            List<Connection> slice = new ArrayList<>();
+            for (int c = i; c < connections.size(); c += senders.length) {
+                if (connections.get(c).ready) {
+                    slice.add(connections.get(c));
+                }
+            }
+            senders[i] = new Thread(() -> send(slice, sizes, roomSizes, start), "load-sender-" + i);
+            senders[i].start();
+        }
+        progress(start);
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        drain();
+
+        running = false;
+        LatencyHistogram latencies = new LatencyHistogram();
+        for (Reader reader : readers) {
+            reader.selector.wakeup();
+            reader.thread.join();
+            latencies.add(reader.latencies);
+        }
+        report(latencies);
+
+        for (Connection connection : connections) {
+            connection.channel.close();
+        }
+        for (Server server : servers) {
+            server.shutdown();
+        }
+        System.exit(0);
+    }
+
+    // Free loopback ports for the cluster links of in-process nodes
+    private static List<String> clusterAddresses(int count) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>();
+        List<String> nodes = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                sockets.add(socket);
+                nodes.add("127.0.0.1:" + socket.getLocalPort());
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+        return nodes;
+    }
+
+    // Opens and registers every client (round-robin over the servers), then hands it to a reader
+    private static List<Connection> connect(List<InetSocketAddress> addresses, int clients, Reader[] readers) {
+        List<Connection> connections = new ArrayList<>(clients);
+        long started = System.nanoTime();
+        try {
+            for (int i = 0; i < clients; i++) {
+                InetSocketAddress address = addresses.get(i % addresses.size());
+                SocketChannel channel = SocketChannel.open();
+                if (address.getAddress() != null && address.getAddress().isLoopbackAddress()) {
+                    // Spread source addresses over 127.0.0.x to stay clear of ephemeral port exhaustion
+                    channel.bind(new InetSocketAddress("127.0.0." + (1 + i / 20000), 0));
+                }
+                channel.connect(address);
+                channel.socket().setTcpNoDelay(true);
+                int room = i % ROOMS;
+                Connection connection = new Connection(channel, "lg" + TAG + "-" + i, room);
+                String hello = "username = " + connection.name + "\n" + (room == 0 ? "" : "Join " + roomName(room) + "\n");
+                ByteBuffer bytes = ByteBuffer.wrap(hello.getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.configureBlocking(false);
+                readers[i % readers.length].add(connection);
+                connections.add(connection);
+            }
+        } catch (IOException e) {
+            System.err.println("Stopped after " + connections.size() + " connections: " + e);
+        }
+        System.out.printf("connected:    %,d in %,d ms%n", connections.size(), (System.nanoTime() - started) / 1_000_000);
+        return connections;
+    }
+
+    // Waits until every client is registered (and in its room), returns the clients per room
+    private static int[] awaitReady(List<Connection> connections) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READY_TIMEOUT_MILLIS);
+        int[] roomSizes = new int[ROOMS];
+        while (true) {
+            Arrays.fill(roomSizes, 0);
+            int waiting = 0;
+            for (Connection connection : connections) {
+                if (connection.ready) {
+                    roomSizes[connection.room]++;
+                } else if (!connection.closed) {
+                    waiting++;
+                }
+            }
+            if (waiting == 0 || System.nanoTime() > deadline) {
+                if (waiting > 0) {
+                    System.out.printf("              (%,d clients never registered, left out)%n", waiting);
+                }
+                return roomSizes;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    // One sender: its clients take turns, evenly spaced at the combined rate of the slice
+    private static void send(List<Connection> slice, SizeDistribution sizes, int[] roomSizes, long start) {
+        if (slice.isEmpty() || RATE <= 0) {
+            return;
+        }
+        Random random = new Random();
+        double interval = 1e9 / (RATE * slice.size());
+        long messages = 0;
+        long due = start;
+        while (due < measureEnd) {
+            long wait = due - System.nanoTime();
+            if (wait > 50_000) {
+                LockSupport.parkNanos(wait - 20_000);
+                continue;
+            }
+            while (due - System.nanoTime() > 0) {
+                Thread.onSpinWait();
+            }
+
+            Connection connection = slice.get((int) (messages % slice.size()));
+            messages++;
+            if (!connection.closed) {
+                write(connection, due, sizes.next(random), roomSizes);
+            }
+            due = start + (long) (messages * interval);
+        }
+    }
+
+    private static void write(Connection connection, long due, int size, int[] roomSizes) {
+        try {
+            if (connection.pending != null) {
+                connection.channel.write(connection.pending);
+                if (connection.pending.hasRemaining()) {
+                    stalled.increment();
+                    return;
+                }
+                connection.pending = null;
+            }
+            ByteBuffer message = message(due, size);
+            connection.channel.write(message);
+            if (message.hasRemaining()) {
+                connection.pending = message;
+            }
+            sent.increment();
+            if (due >= measureStart) {
+                measuredSent.increment();
+                // Everyone in the room gets it, the sender included
+                expected.add(roomSizes[connection.room]);
+            }
+        } catch (IOException e) {
+            connection.closed = true;
+        }
+    }
+
+    // "#<tag> <due nanos> " padded with 'x' to size bytes, plus the newline
+    private static ByteBuffer message(long due, int size) {
+        byte[] head = ("#" + TAG + " " + due + " ").getBytes(StandardCharsets.US_ASCII);
+        byte[] line = new byte[Math.max(size, head.length) + 1];
+        System.arraycopy(head, 0, line, 0, head.length);
+        Arrays.fill(line, head.length, line.length - 1, (byte) 'x');
+        line[line.length - 1] = '\n';
+        return ByteBuffer.wrap(line);
+    }
+
+    // A line per second while messages are being sent
+    private static void progress(long start) throws InterruptedException {
+        long lastSent = 0;
+        long lastDelivered = 0;
+        for (int second = 1; start + TimeUnit.SECONDS.toNanos(second) <= measureEnd; second++) {
+            long wait = start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(wait));
+            }
+            long sentNow = sent.sum();
+            long deliveredNow = delivered.sum();
+            System.out.printf("%4d s %s  sent %,9d/s  delivered %,11d/s  disconnects %,d%n", second,
+                    second <= WARMUP ? "warm-up" : "       ", sentNow - lastSent, deliveredNow - lastDelivered,
+                    disconnects.sum());
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+        }
+    }
+
+    // Gives late deliveries some time, returns once they stop coming or everything arrived
+    private static void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        long last = -1;
+        while (System.nanoTime() < deadline && measuredDelivered.sum() < expected.sum()) {
+            Thread.sleep(200);
+            long now = measuredDelivered.sum();
+            if (now == last) {
+                return;
+            }
+            last = now;
+        }
+    }
+
+    private static void report(LatencyHistogram latencies) {
+        double seconds = SECONDS;
+        long sentCount = measuredSent.sum();
+        long deliveredCount = measuredDelivered.sum();
+        long expectedCount = expected.sum();
+        System.out.printf("sent:         %,d (%,.0f msg/s), %,d skipped on full sockets%n",
+                sentCount, sentCount / seconds, stalled.sum());
+        System.out.printf("delivered:    %,d (%,.0f msg/s, %.1f MB/s read), %.2f%% of expected%n",
+                deliveredCount, deliveredCount / seconds, bytesRead.sum() / seconds / 1e6,
+                expectedCount == 0 ? 0 : 100.0 * deliveredCount / expectedCount);
+        System.out.printf("latency us:   p50 %,d  p90 %,d  p99 %,d  p99.9 %,d  max %,d  mean %,.0f%n",
+                latencies.percentile(0.50) / 1000, latencies.percentile(0.90) / 1000,
+                latencies.percentile(0.99) / 1000, latencies.percentile(0.999) / 1000,
+                latencies.max() / 1000, latencies.mean() / 1000);
+        System.out.printf("disconnects:  %,d (%,d refused registrations)%n", disconnects.sum(), refused.sum());
+    }
+
+    private static String roomName(int room) {
+        return "load-" + room;
+    }
+
+    // Reads a share of the connections on one selector and times each generated chat line
+    static final class Reader implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Connection> added = new ConcurrentLinkedQueue<>();
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        Reader() throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "load-reader");
+        }
+
+        // Registering from another thread would block behind select(), so the reader does it
+        void add(Connection connection) {
+            added.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Connection connection;
+                    while ((connection = added.poll()) != null) {
+                        connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    selector.select(100);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        read(key);
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Reader failed: " + e.getMessage());
+            }
+        }
+
+        private void read(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            int count;
+            try {
+                while ((count = connection.channel.read(buffer)) > 0) {
+                    long now = System.nanoTime();
+                    if (now >= measureStart && now < measureEnd) {
+                        bytesRead.add(count);
+                    }
+                    lines(connection, now);
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                key.cancel();
+                if (!connection.closed && running) {
+                    disconnects.increment();
+                }
+                connection.closed = true;
+            }
+        }
+
+        // Splits what was read into lines, carrying an unfinished one over to the next read
+        private void lines(Connection connection, long now) {
+            byte[] data = buffer.array();
+            int limit = buffer.position();
+            int start = 0;
+            for (int i = 0; i < limit; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                if (connection.partialLength == 0) {
+                    line(connection, data, start, i, now);
+                } else {
+                    append(connection, data, start, i);
+                    line(connection, connection.partial, 0, connection.partialLength, now);
+                    connection.partialLength = 0;
+                }
+                start = i + 1;
+            }
+            if (start < limit) {
+                append(connection, data, start, limit);
+            }
+        }
+
+        private static void append(Connection connection, byte[] data, int from, int to) {
+            int length = connection.partialLength + to - from;
+            if (length > connection.partial.length) {
+                connection.partial = Arrays.copyOf(connection.partial, Math.max(length, connection.partial.length * 2));
+            }
+            System.arraycopy(data, from, connection.partial, connection.partialLength, to - from);
+            connection.partialLength = length;
+        }
+
+        private void line(Connection connection, byte[] data, int from, int to, long now) {
+            if (!connection.ready) {
+                String line = new String(data, from, to - from, StandardCharsets.UTF_8).trim();
+                if (line.endsWith(connection.readyLine)) {
+                    connection.ready = true;
+                } else if (line.startsWith("Username already taken")) {
+                    refused.increment();
+                    connection.closed = true;
+                }
+                return;
+            }
+
+            int marker = indexOf(data, from, to, MARKER);
+            if (marker < 0) {
+                return;
+            }
+            long due = 0;
+            int digits = 0;
+            for (int i = marker + MARKER.length; i < to && data[i] >= '0' && data[i] <= '9'; i++, digits++) {
+                due = due * 10 + (data[i] - '0');
+            }
+            // nanoTime can be negative, a generated message then has a leading '-'
+            if (digits == 0 && marker + MARKER.length < to && data[marker + MARKER.length] == '-') {
+                for (int i = marker + MARKER.length + 1; i < to && data[i] >= '0' && data[i] <= '9'; i++, digits++) {
+                    due = due * 10 - (data[i] - '0');
+                }
+            }
+            if (digits == 0) {
+                return;
+            }
+            delivered.increment();
+            if (due >= measureStart && due < measureEnd) {
+                measuredDelivered.increment();
+                latencies.record(now - due);
+            }
+        }
+
+        private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+            outer:
+            for (int i = from; i <= to - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (data[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package minichat.bench;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import minichat.protocol.Protocol;
+import minichat.server.SessionOutput;
+import minichat.server.SessionRegistry;
+
+/**
+ * Fan-out of a reconnect storm: everyone in a room drops and registers again at once, the
+ * way a network blip looks to the server. Counts the writes queued on sessions (and their
+ * bytes) for the Goodbye and Welcome announcements plus the roster deltas of the members
+ * that follow presence, with storm batching off and on.
+ *
+ * Usage: java -cp jar/bench.jar minichat.bench.PresenceStormBench [sessions...]
+ */
+public class PresenceStormBench {
+    private static final int DIGEST_MILLIS = 200;
+
+    // Counts what it is given and keeps nothing
+    static final class CountingOutput implements SessionOutput {
+        final AtomicLong writes;
+        final AtomicLong bytes;
+
+        CountingOutput(AtomicLong writes, AtomicLong bytes) {
+            this.writes = writes;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void println(String line) {
+            print(line + "\n");
+        }
+
+        @Override
+        public void print(String text) {
+            writes.incrementAndGet();
+            bytes.addAndGet(text.length());
+        }
+
+        @Override
+        public void send(ByteBuffer data) {
+            writes.incrementAndGet();
+            bytes.addAndGet(data.remaining());
+        }
+
+        @Override
+        public boolean checkError() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] sizes = {1000, 5000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.setProperty("minichat.presence.storm.ms", String.valueOf(DIGEST_MILLIS));
+
+        System.out.printf("%9s %9s %14s %14s %10s%n", "sessions", "batching", "writes", "MB", "ms");
+        for (int size : sizes) {
+            for (boolean batching : new boolean[] {false, true}) {
+                run(size, batching, false);  // warm-up
+                run(size, batching, true);
+            }
+        }
+    }
+
+    private static void run(int size, boolean batching, boolean report) throws InterruptedException {
+        System.setProperty("minichat.presence.storm.rate", batching ? "100" : "0");
+        SessionRegistry registry = new SessionRegistry();
+        AtomicLong writes = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        CountingOutput[] outputs = new CountingOutput[size];
+        for (int i = 0; i < size; i++) {
+            outputs[i] = new CountingOutput(writes, bytes);
+            registry.add("user" + i, outputs[i], Instant.now());
+            // Half of them follow the roster, like GUI clients
+            if (i % 2 == 0) {
+                registry.setPresence("user" + i, true);
+            }
+        }
+        // Let the sign-on settle and the rate window pass before the storm starts
+        Thread.sleep(TimeUnit.SECONDS.toMillis(2) + DIGEST_MILLIS);
+        writes.set(0);
+        bytes.set(0);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            registry.remove("user" + i, outputs[i]);
+            registry.broadcastPresence(SessionRegistry.DEFAULT_ROOM, Protocol.GOODBYE, "user" + i);
+        }
+        for (int i = 0; i < size; i++) {
+            registry.add("user" + i, outputs[i], Instant.now());
+            registry.broadcastPresence(SessionRegistry.DEFAULT_ROOM, Protocol.WELCOME, "user" + i);
+        }
+        long elapsed = System.nanoTime() - started;
+        // Batched digests go out on the timer thread
+        Thread.sleep(DIGEST_MILLIS * 3L);
+
+        if (report) {
+            System.out.printf("%9d %9s %14d %14.1f %10d%n", size, batching ? "on" : "off",
+                    writes.get(), bytes.get() / 1e6, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+        registry.closeAll();
+    }
+}
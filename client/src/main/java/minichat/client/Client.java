@@ -2,26 +2,32 @@ package minichat.client;
 
 import java.io.*;
 import java.net.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.concurrent.atomic.AtomicBoolean;
+import minichat.protocol.Frame;
+import minichat.protocol.Protocol;
 
 public class Client {
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private ServerConnection connection;
     private BufferedReader consoleReader;
     private final AtomicBoolean running;
     private boolean isRegistered = false;  // Track registration status
+    private volatile String username = "";
+    private static final String PRIVATE_TAG = "[private]";
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final DateTimeFormatter FULL_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy");
 
     public Client() {
         this.running = new AtomicBoolean(true);
     }
 
     public void connect(String host, int port) throws IOException {
-        socket = new Socket(host, port);
+        connection = new ServerConnection(host, port);
+        Socket socket = connection.getSocket();
 
-        // Setup I/O streams with UTF-8 encoding
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+        // Setup console input with UTF-8 encoding
         consoleReader = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
 
         // Display connection confirmation (matching expected output)
@@ -55,8 +61,8 @@ public class Client {
 
     private void handleUsernameRegistration() {
         try {
-            // Read initial server prompt
-            String prompt = in.readLine();
+            // Read initial server prompt (and switch to binary framing if offered)
+            String prompt = connection.handshake();
             if (prompt != null && prompt.contains("Please set your username")) {
                 // Don't display the server's technical prompt, just ask for username
                 System.out.println("Enter the username:");
@@ -66,10 +72,11 @@ public class Client {
             String username = consoleReader.readLine();
 
             // Send registration message
-            if (!username.startsWith("username = ")) {
-                username = "username = " + username;
+            if (username.startsWith("username = ")) {
+                username = username.substring("username = ".length());
             }
-            out.println(username);
+            this.username = username.trim();
+            connection.register(this.username);
 
             // Mark as registered after sending username
             isRegistered = true;
@@ -81,9 +88,13 @@ public class Client {
     }
 
     private void readFromServer() {
+        if (connection.isBinary()) {
+            readFramesFromServer();
+            return;
+        }
         try {
             String line;
-            while (running.get() && (line = in.readLine()) != null) {
+            while (running.get() && (line = connection.readLine()) != null) {
                 // Filter out the technical prompts from server
                 if (line.contains("Please set your username") ||
                         line.contains("Please choose another")) {
@@ -96,7 +107,25 @@ public class Client {
                     }
                 } else {
                     // Display all other messages (chat messages, welcome, goodbye, user lists)
-                    System.out.println(line);
+                    System.out.println(formatPrivate(line));
+                }
+            }
+        } catch (IOException e) {
+            if (running.get()) {
+                System.err.println("Connection to server lost");
+            }
+        }
+        running.set(false);
+    }
+
+    // Binary framing: fields arrive typed, printed the way the text protocol shows them
+    private void readFramesFromServer() {
+        try {
+            Frame frame;
+            while (running.get() && (frame = connection.readFrame()) != null) {
+                String text = render(frame);
+                if (text != null) {
+                    System.out.println(text);
                 }
             }
         } catch (IOException e) {
@@ -107,6 +136,125 @@ public class Client {
         running.set(false);
     }
 
+    private String render(Frame frame) throws IOException {
+        switch (frame.type()) {
+            case Protocol.MESSAGE: {
+                String time = formatTime(frame.getLong(), TIME_FORMAT);
+                return time + " " + frame.getString() + ": " + frame.getString();
+            }
+            case Protocol.PRIVATE_MESSAGE: {
+                String time = formatTime(frame.getLong(), TIME_FORMAT);
+                String from = frame.getString();
+                String to = frame.getString();
+                String label = from.equals(username) ? "(private to " + to + ")" : "(private from " + from + ")";
+                return time + " " + label + " " + frame.getString();
+            }
+            case Protocol.PRESENCE: {
+                String time = formatTime(frame.getLong(), TIME_FORMAT);
+                byte kind = frame.getByte();
+                String user = frame.getString();
+                switch (kind) {
+                    case Protocol.WELCOME:
+                        return time + " Server: Welcome " + user;
+                    case Protocol.GOODBYE:
+                        return time + " Server: Goodbye " + user;
+                    case Protocol.JOINED_ROOM:
+                        return time + " Server: " + user + " joined the room";
+                    default:
+                        return time + " Server: " + user + " left the room";
+                }
+            }
+            case Protocol.USER_LIST: {
+                StringBuilder sb = new StringBuilder();
+                sb.append("\nList of users connected at time: ").append(formatTime(frame.getLong(), TIME_FORMAT)).append("\n");
+                frame.getString(); // room
+                long offset = frame.getLong();
+                boolean more = frame.getByte() != 0;
+                int count = frame.getInt();
+                for (int i = 1; i <= count; i++) {
+                    String name = frame.getString();
+                    sb.append("\t").append(offset + i).append(") ").append(name)
+                            .append(" since ").append(formatTime(frame.getLong(), FULL_DATE_FORMAT)).append("\n");
+                }
+                if (more) {
+                    sb.append("\t...\n");
+                }
+                return sb.toString();
+            }
+            case Protocol.ROOM_LIST: {
+                StringBuilder sb = new StringBuilder();
+                sb.append("\nList of rooms at time: ").append(formatTime(frame.getLong(), TIME_FORMAT)).append("\n");
+                int count = frame.getInt();
+                for (int i = 1; i <= count; i++) {
+                    String room = frame.getString();
+                    int size = frame.getInt();
+                    sb.append("\t").append(i).append(") ").append(room)
+                            .append(" (").append(size).append(size == 1 ? " user)" : " users)").append("\n");
+                }
+                return sb.toString();
+            }
+            case Protocol.ROSTER: {
+                String time = formatTime(frame.getLong(), TIME_FORMAT);
+                String room = frame.getString();
+                long version = frame.getLong();
+                int count = frame.getInt();
+                StringBuilder sb = new StringBuilder();
+                sb.append(time).append(" Roster of ").append(room).append(" (v").append(version).append("): ");
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(frame.getString());
+                    frame.getLong();
+                }
+                return sb.toString();
+            }
+            case Protocol.ROSTER_DELTA: {
+                String time = formatTime(frame.getLong(), TIME_FORMAT);
+                long version = frame.getLong();
+                String sign = frame.getByte() == Protocol.ROSTER_ADDED ? "+" : "-";
+                return time + " Roster (v" + version + "): " + sign + frame.getString();
+            }
+            case Protocol.NOTICE:
+                return formatTime(frame.getLong(), TIME_FORMAT) + " Server: " + frame.getString();
+            case Protocol.ERROR: {
+                String text = frame.getString();
+                if (text.startsWith("Username")) {
+                    // Registration refused, ask again
+                    isRegistered = false;
+                    return text + "\nEnter the username:";
+                }
+                return "Server: " + text;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static String formatTime(long epochMillis, DateTimeFormatter format) {
+        return Instant.ofEpochMilli(epochMillis).atZone(ZoneId.systemDefault()).format(format);
+    }
+
+    // "HH:mm:ss [private] from -> to: text" becomes "HH:mm:ss (private from alice) text"
+    // or "(private to bob)" for the echo of our own message, anything else is left as-is
+    private String formatPrivate(String line) {
+        int tag = line.indexOf(" " + PRIVATE_TAG + " ");
+        if (tag < 0) {
+            return line;
+        }
+        String body = line.substring(tag + PRIVATE_TAG.length() + 2);
+        int arrow = body.indexOf(" -> ");
+        int colon = body.indexOf(": ", arrow + 4);
+        if (arrow <= 0 || colon < 0) {
+            return line;
+        }
+        String from = body.substring(0, arrow);
+        String to = body.substring(arrow + 4, colon);
+        String text = body.substring(colon + 2);
+        String label = from.equals(username) ? "(private to " + to + ")" : "(private from " + from + ")";
+        return line.substring(0, tag) + " " + label + " " + text;
+    }
+
     private void writeToServer() {
         try {
             String line;
@@ -114,14 +262,17 @@ public class Client {
                 // Only prepend "username = " if we're not registered
                 // and it's not already in the correct format
                 if (!isRegistered) {
-                    if (!line.startsWith("username = ")) {
-                        line = "username = " + line;
+                    if (line.startsWith("username = ")) {
+                        line = line.substring("username = ".length());
                     }
+                    username = line.trim();
                     isRegistered = true;  // Assume registration after sending
+                    connection.register(username);
+                    continue;
                 }
 
                 // Send message as-is (no modification for regular messages)
-                out.println(line);
+                connection.send(line);
 
                 // Check if user wants to quit
                 if (line.equals("Bye")) {
@@ -138,8 +289,8 @@ public class Client {
     private void shutdown() {
         running.set(false);
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            if (connection != null) {
+                connection.close();
             }
         } catch (IOException e) {
             // Ignore errors during shutdown
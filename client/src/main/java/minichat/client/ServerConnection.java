@@ -0,0 +1,176 @@
+package minichat.client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import minichat.protocol.Frame;
+import minichat.protocol.FrameBuilder;
+import minichat.protocol.Protocol;
+import minichat.protocol.WireReader;
+
+// Connection to a MiniChat server, shared by the console and GUI clients. Upgrades to
+// binary framing when the server offers it (unless -Dminichat.protocol=text), otherwise
+// speaks the text protocol. Callers keep sending the lines a user would type.
+// With -Dminichat.compress=true a binary connection also asks for compressed frames.
+public class ServerConnection implements Closeable {
+    private final Socket socket;
+    private final WireReader in;
+    private final OutputStream out;
+    private boolean binary;
+
+    // Inflaters by stream id, until the server ends the stream (our own one never ends)
+    private final Map<Integer, Inflater> inflaters = new HashMap<>();
+    // Frames inflated from one DEFLATED frame and not yet returned
+    private final ArrayDeque<Frame> inflated = new ArrayDeque<>();
+    private byte[] inflateBuffer = new byte[1024];
+
+    public ServerConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        in = new WireReader(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    // Read the username prompt and negotiate framing, returns the prompt (null if the server hung up).
+    // A server that does not know the offer answers it with a new prompt, and we stay on text.
+    public String handshake() throws IOException {
+        String prompt = in.readLine();
+        if (prompt == null || "text".equalsIgnoreCase(System.getProperty("minichat.protocol"))) {
+            return prompt;
+        }
+
+        writeLine(Protocol.OFFER_PREFIX + Protocol.BINARY_VERSION);
+        String reply = in.readLine();
+        if (reply == null) {
+            return null;
+        }
+        binary = Protocol.parseOffer(reply) == Protocol.BINARY_VERSION;
+        return prompt;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Ask to register a username
+    public void register(String name) throws IOException {
+        if (binary) {
+            FrameBuilder frame = new FrameBuilder(Protocol.REGISTER).putString(name);
+            if (Boolean.getBoolean("minichat.compress")) {
+                frame.putByte(Protocol.FLAG_DEFLATE);
+            }
+            writeFrame(frame);
+        } else {
+            writeLine("username = " + name);
+        }
+    }
+
+    // Send a line as typed: commands, "/msg user text" or chat
+    public void send(String line) throws IOException {
+        if (!binary) {
+            writeLine(line);
+        } else if (line.startsWith("/msg ")) {
+            String args = line.substring(5).trim();
+            int split = args.indexOf(' ');
+            String target = split < 0 ? args : args.substring(0, split);
+            String text = split < 0 ? "" : args.substring(split + 1);
+            writeFrame(new FrameBuilder(Protocol.PRIVATE).putString(target).putString(text));
+        } else if (isCommand(line)) {
+            writeFrame(new FrameBuilder(Protocol.COMMAND).putString(line));
+        } else {
+            writeFrame(new FrameBuilder(Protocol.CHAT).putString(line));
+        }
+    }
+
+    private static boolean isCommand(String line) {
+        return line.equals("Bye") || line.equals("AllUsers") || line.startsWith("AllUsers ") || line.equals("Rooms")
+                || line.equals("Join") || line.startsWith("Join ") || line.equals("Leave")
+                || line.equals("History") || line.startsWith("History ")
+                || line.equals("Presence") || line.startsWith("Presence ")
+                || line.equals("Stats")
+                || line.equals("/msg");
+    }
+
+    // Next text line, or null when the connection ends
+    public String readLine() throws IOException {
+        return in.readLine();
+    }
+
+    // Next frame (binary mode only), or null when the connection ends
+    // Compressed frames are inflated here, callers only ever see plain ones
+    public Frame readFrame() throws IOException {
+        while (inflated.isEmpty()) {
+            Frame frame = in.readFrame(Protocol.MAX_SERVER_FRAME);
+            if (frame == null) {
+                return null;
+            } else if (frame.type() == Protocol.DEFLATE_END) {
+                Inflater inflater = inflaters.remove(frame.getInt());
+                if (inflater != null) {
+                    inflater.end();
+                }
+            } else if (frame.type() == Protocol.DEFLATED) {
+                inflate(frame);
+            } else {
+                return frame;
+            }
+        }
+        return inflated.poll();
+    }
+
+    private void inflate(Frame frame) throws IOException {
+        int streamId = frame.getInt();
+        byte[] data = frame.getRemaining();
+        Inflater inflater = inflaters.get(streamId);
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflaters.put(streamId, inflater);
+        }
+
+        // The server sync-flushes each block, so all of its output is available now
+        inflater.setInput(data);
+        int length = 0;
+        try {
+            while (true) {
+                int count = inflater.inflate(inflateBuffer, length, inflateBuffer.length - length);
+                length += count;
+                if (length == inflateBuffer.length) {
+                    if (length >= Protocol.MAX_SERVER_FRAME) {
+                        throw new IOException("Compressed frame too large");
+                    }
+                    inflateBuffer = Arrays.copyOf(inflateBuffer, length * 2);
+                } else if (count == 0) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        }
+
+        List<Frame> frames = new ArrayList<>();
+        Frame.parseAll(inflateBuffer, length, Protocol.MAX_SERVER_FRAME, frames);
+        inflated.addAll(frames);
+    }
+
+    private synchronized void writeLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private synchronized void writeFrame(FrameBuilder frame) throws IOException {
+        ByteBuffer bytes = frame.build();
+        out.write(bytes.array(), bytes.position(), bytes.remaining());
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -8,6 +8,9 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import minichat.client.ServerConnection;
+import minichat.protocol.Frame;
+import minichat.protocol.Protocol;
 import javax.swing.*;
 import javax.swing.border.*;
 import javax.swing.plaf.ColorUIResource;
@@ -22,13 +25,12 @@ import javax.swing.text.*;
  */
 public class GuiClient extends JFrame {
     // Networking components
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private ServerConnection connection;
     private final AtomicBoolean running = new AtomicBoolean(true);
     private boolean isRegistered = false;
     private String username = "";
-    private String currentRoom = "Main Lobby";
+    private static final String DEFAULT_ROOM = "Main Lobby";
+    private String currentRoom = DEFAULT_ROOM;
 
     // UI components
     private JTextPane transcriptPane;
@@ -44,7 +46,14 @@ public class GuiClient extends JFrame {
     private GradientHeader headerPanel;
     private boolean sortAlphabetically = false;
 
+    // Presence subscription: version of the roster shown (-1 until a snapshot arrived) and who
+    // is on it, so a delta is a set lookup and one list insert or removal (EDT only)
+    private long rosterVersion = -1;
+    private final Set<String> rosterNames = new HashSet<>();
+
     private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final String PRIVATE_TAG = "[private]";
+    private static final Color PRIVATE_COLOR = new Color(0x800080);
 
     /**
      * Retro theme constants
@@ -71,7 +80,7 @@ public class GuiClient extends JFrame {
      * Message types for transcript rendering
      */
     enum MessageType {
-        USER, SERVER, ERROR
+        USER, PRIVATE, SERVER, ERROR
     }
 
     /**
@@ -423,7 +432,20 @@ public class GuiClient extends JFrame {
 
         JMenuItem refreshItem = new JMenuItem("Send \"AllUsers\"");
         refreshItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_R, InputEvent.CTRL_DOWN_MASK));
-        refreshItem.addActionListener(e -> requestUserList());
+        refreshItem.addActionListener(e -> sendCommand("AllUsers"));
+
+        JMenuItem joinItem = new JMenuItem("Join Room...");
+        joinItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_J, InputEvent.CTRL_DOWN_MASK));
+        joinItem.addActionListener(e -> promptJoinRoom());
+
+        JMenuItem leaveItem = new JMenuItem("Back to " + DEFAULT_ROOM);
+        leaveItem.addActionListener(e -> sendCommand("Leave"));
+
+        JMenuItem roomsItem = new JMenuItem("Send \"Rooms\"");
+        roomsItem.addActionListener(e -> sendCommand("Rooms"));
+
+        JMenuItem historyItem = new JMenuItem("Send \"History\"");
+        historyItem.addActionListener(e -> sendCommand("History"));
 
         JMenuItem clearItem = new JMenuItem("Clear Transcript");
         clearItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_L, InputEvent.CTRL_DOWN_MASK));
@@ -436,6 +458,10 @@ public class GuiClient extends JFrame {
         exitItem.addActionListener(e -> System.exit(0));
 
         roomMenu.add(refreshItem);
+        roomMenu.add(joinItem);
+        roomMenu.add(leaveItem);
+        roomMenu.add(roomsItem);
+        roomMenu.add(historyItem);
         roomMenu.add(clearItem);
         roomMenu.addSeparator();
         roomMenu.add(signOffItem);
@@ -482,7 +508,12 @@ public class GuiClient extends JFrame {
 
         JMenuItem refreshPeopleItem = new JMenuItem("Refresh List");
         refreshPeopleItem.addActionListener(e -> requestUserList());
+        JMenuItem privateItem = new JMenuItem("Private Message...");
+        privateItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_P, InputEvent.CTRL_DOWN_MASK));
+        privateItem.addActionListener(e -> promptPrivateMessage());
+
         peopleMenu.add(refreshPeopleItem);
+        peopleMenu.add(privateItem);
 
         // Help menu
         JMenu helpMenu = new JMenu("Help");
@@ -638,11 +669,7 @@ public class GuiClient extends JFrame {
      * Connect to server
      */
     public void connect(String host, int port) throws IOException {
-        socket = new Socket(host, port);
-
-        // Setup streams w UTF-8 encoding
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+        connection = new ServerConnection(host, port);
 
         // Update status
         SwingUtilities.invokeLater(() -> {
@@ -654,75 +681,88 @@ public class GuiClient extends JFrame {
      * Start the client (handle registration and begin chat)
      */
     public void start() {
-        // Handle user registration
-        handleUsernameRegistration();
-
-        // Start reader thread for incoming messages
-        Thread readerThread = new Thread(this::readFromServer);
+        // Reader thread: handshake first, so nothing else reads the socket until framing is settled
+        Thread readerThread = new Thread(() -> {
+            if (handleHandshake()) {
+                readFromServer();
+            }
+        });
         readerThread.setDaemon(true);
         readerThread.start();
     }
 
     /**
-     * Handle username registration
+     * Read the server prompt, negotiate framing, then ask for a username
+     */
+    private boolean handleHandshake() {
+        try {
+            String serverPrompt = connection.handshake();
+            System.out.println("Server prompt: " + serverPrompt);
+            System.out.println("Protocol: " + (connection.isBinary() ? "binary frames" : "text lines"));
+            SwingUtilities.invokeLater(this::handleUsernameRegistration);
+            return serverPrompt != null;
+        } catch (IOException e) {
+            SwingUtilities.invokeLater(() -> {
+                appendMessage(MessageType.ERROR, "", "Registration failed: " + e.getMessage(), Color.RED);
+            });
+            return false;
+        }
+    }
+
+    /**
+     * Handle username registration (on the EDT)
      */
     private void handleUsernameRegistration() {
-        // Separate thread to read the server prompt first
-        new Thread(() -> {
-            try {
-                // Read server initial prompt
-                String serverPrompt = in.readLine();
-                System.out.println("Server prompt: " + serverPrompt);
+        String prompt = JOptionPane.showInputDialog(
+                this,
+                "Enter your username:",
+                "AOL Chat - Sign On",
+                JOptionPane.PLAIN_MESSAGE
+        );
+
+        if (prompt != null && !prompt.trim().isEmpty()) {
+            username = prompt.trim();
+
+            // Send username registration
+            new Thread(() -> {
+                try {
+                    connection.register(username);
+                } catch (IOException e) {
+                    SwingUtilities.invokeLater(() -> {
+                        appendMessage(MessageType.ERROR, "", "Registration failed: " + e.getMessage(), Color.RED);
+                    });
+                    return;
+                }
+                isRegistered = true;
 
-                // ask user for username in EDT
                 SwingUtilities.invokeLater(() -> {
-                    String prompt = JOptionPane.showInputDialog(
-                            this,
-                            "Enter your username:",
-                            "AOL Chat - Sign On",
-                            JOptionPane.PLAIN_MESSAGE
-                    );
-
-                    if (prompt != null && !prompt.trim().isEmpty()) {
-                        username = prompt.trim();
-
-                        // Send username registration
-                        new Thread(() -> {
-                            String regMessage = "username = " + username;
-                            out.println(regMessage);
-                            isRegistered = true;
-
-                            SwingUtilities.invokeLater(() -> {
-                                setConnectionStatus("Connected as " + username, true);
-                                // Enable input area since we registered
-                                inputArea.setEnabled(true);
-                                inputArea.requestFocus();
-                                // Add self to people list
-                                if (!peopleModel.contains("• " + username)) {
-                                    peopleModel.addElement("• " + username);
-                                    refreshPeopleList();
-                                }
-                            });
-                        }).start();
-                    } else {
-                        System.exit(0);
+                    setConnectionStatus("Connected as " + username, true);
+                    // Enable input area since we registered
+                    inputArea.setEnabled(true);
+                    inputArea.requestFocus();
+                    // Add self to people list
+                    if (!peopleModel.contains("• " + username)) {
+                        peopleModel.addElement("• " + username);
+                        refreshPeopleList();
                     }
                 });
-            } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> {
-                    appendMessage(MessageType.ERROR, "", "Registration failed: " + e.getMessage(), Color.RED);
-                });
-            }
-        }).start();
+            }).start();
+        } else {
+            System.exit(0);
+        }
     }
 
     /**
      * Read messages from server
      */
     private void readFromServer() {
+        if (connection.isBinary()) {
+            readFramesFromServer();
+            return;
+        }
         try {
             String line;
-            while (running.get() && (line = in.readLine()) != null) {
+            while (running.get() && (line = connection.readLine()) != null) {
                 final String message = line;
 
                 SwingUtilities.invokeLater(() -> {
@@ -740,10 +780,242 @@ public class GuiClient extends JFrame {
         running.set(false);
     }
 
+    /**
+     * Read frames from server (binary framing)
+     */
+    private void readFramesFromServer() {
+        try {
+            Frame frame;
+            while (running.get() && (frame = connection.readFrame()) != null) {
+                processIncomingFrame(frame);
+            }
+        } catch (IOException e) {
+            if (running.get()) {
+                SwingUtilities.invokeLater(() -> {
+                    appendMessage(MessageType.ERROR, "", "Connection to server lost", Color.RED);
+                    setConnectionStatus("Disconnected", false);
+                });
+            }
+        }
+        running.set(false);
+    }
+
+    /**
+     * Decode a frame on the reader thread and apply it on the EDT, fields arrive typed so nothing is guessed
+     */
+    private void processIncomingFrame(Frame frame) throws IOException {
+        switch (frame.type()) {
+            case Protocol.MESSAGE: {
+                frame.getLong();
+                String user = frame.getString();
+                String content = frame.getString();
+                SwingUtilities.invokeLater(() -> showUserMessage(user, content));
+                break;
+            }
+            case Protocol.PRIVATE_MESSAGE: {
+                frame.getLong();
+                String from = frame.getString();
+                String to = frame.getString();
+                String content = frame.getString();
+                SwingUtilities.invokeLater(() -> appendMessage(MessageType.PRIVATE, from + " -> " + to, content, PRIVATE_COLOR));
+                break;
+            }
+            case Protocol.PRESENCE: {
+                frame.getLong();
+                byte kind = frame.getByte();
+                String user = frame.getString();
+                String room = frame.getString();
+                SwingUtilities.invokeLater(() -> showPresence(kind, user, room));
+                break;
+            }
+            case Protocol.USER_LIST: {
+                frame.getLong();
+                String room = frame.getString();
+                long offset = frame.getLong();
+                boolean more = frame.getByte() != 0;
+                int count = frame.getInt();
+                java.util.List<String> names = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    names.add(frame.getString());
+                    frame.getLong();
+                }
+                // Later pages number on from where the last one ended, and add to the list
+                String range = count == 0 || offset == 0 && !more ? ""
+                        : " (" + (offset + 1) + "-" + (offset + count) + (more ? ", more to come" : "") + ")";
+                SwingUtilities.invokeLater(() -> {
+                    appendMessage(MessageType.SERVER, "", "People in " + room + range + ": " + String.join(", ", names), RetroTheme.ACCENT_NAVY);
+                    if (rosterVersion < 0) {
+                        if (offset == 0) {
+                            peopleModel.clear();
+                        }
+                        for (String name : names) {
+                            if (!peopleModel.contains("• " + name)) {
+                                peopleModel.addElement("• " + name);
+                            }
+                        }
+                        refreshPeopleList();
+                    }
+                });
+                break;
+            }
+            case Protocol.ROSTER: {
+                frame.getLong();
+                String room = frame.getString();
+                long version = frame.getLong();
+                int count = frame.getInt();
+                java.util.List<String> names = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    names.add(frame.getString());
+                    frame.getLong();
+                }
+                SwingUtilities.invokeLater(() -> {
+                    startRoster(version);
+                    for (String name : names) {
+                        addToRoster(name);
+                    }
+                    showPeopleCount();
+                });
+                break;
+            }
+            case Protocol.ROSTER_DELTA: {
+                frame.getLong();
+                long version = frame.getLong();
+                byte kind = frame.getByte();
+                String user = frame.getString();
+                SwingUtilities.invokeLater(() -> applyRosterDelta(version, kind == Protocol.ROSTER_ADDED, user));
+                break;
+            }
+            case Protocol.ROOM_LIST: {
+                frame.getLong();
+                int count = frame.getInt();
+                StringBuilder rooms = new StringBuilder("Rooms: ");
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        rooms.append(", ");
+                    }
+                    rooms.append(frame.getString()).append(" (").append(frame.getInt()).append(")");
+                }
+                String text = rooms.toString();
+                SwingUtilities.invokeLater(() -> appendMessage(MessageType.SERVER, "", text, RetroTheme.ACCENT_NAVY));
+                break;
+            }
+            case Protocol.NOTICE: {
+                frame.getLong();
+                String text = frame.getString();
+                SwingUtilities.invokeLater(() -> appendMessage(MessageType.SERVER, "", "Server: " + text, RetroTheme.ACCENT_NAVY));
+                break;
+            }
+            case Protocol.ERROR: {
+                String text = frame.getString();
+                SwingUtilities.invokeLater(() -> {
+                    appendMessage(MessageType.ERROR, "", text, Color.RED);
+                    if (text.startsWith("Username")) {
+                        // Registration refused, ask again
+                        isRegistered = false;
+                        handleUsernameRegistration();
+                    }
+                });
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Show a room message and make sure its sender is in the people list
+     */
+    private void showUserMessage(String user, String content) {
+        if (rosterVersion < 0 && !peopleModel.contains("• " + user)) {
+            peopleModel.addElement("• " + user);
+            refreshPeopleList();
+        }
+
+        Color messageColor = Color.BLACK;
+        if (user.equals(username)) {
+            // Our own message being echoed back
+            ColorItem selected = (ColorItem) colorCombo.getSelectedItem();
+            messageColor = selected.color;
+        }
+        appendMessage(MessageType.USER, user, content, messageColor);
+    }
+
+    /**
+     * Apply a presence change to the people list (and the room title when it is us moving)
+     */
+    private void showPresence(byte kind, String user, String room) {
+        String text;
+        switch (kind) {
+            case Protocol.WELCOME:
+                text = "Welcome " + user;
+                break;
+            case Protocol.GOODBYE:
+                text = "Goodbye " + user;
+                break;
+            case Protocol.JOINED_ROOM:
+                text = user + " joined the room";
+                break;
+            default:
+                text = user + " left the room";
+                break;
+        }
+        appendMessage(MessageType.SERVER, "", "Server: " + text, RetroTheme.ACCENT_NAVY);
+
+        if (user.equals(username) && kind == Protocol.JOINED_ROOM) {
+            headerPanel.updateRoom(room);
+        }
+        if (user.equals(username) && kind == Protocol.WELCOME) {
+            // Subscribe, the roster then follows us from room to room
+            requestUserList();
+        }
+        if (rosterVersion >= 0) {
+            // The roster deltas keep the list
+            return;
+        }
+
+        if (kind == Protocol.GOODBYE || kind == Protocol.LEFT_ROOM) {
+            peopleModel.removeElement("• " + user);
+            refreshPeopleList();
+            return;
+        }
+        if (user.equals(username)) {
+            if (kind == Protocol.JOINED_ROOM) {
+                peopleModel.clear();
+                peopleModel.addElement("• " + username);
+                requestUserList();
+            }
+        } else if (!peopleModel.contains("• " + user)) {
+            peopleModel.addElement("• " + user);
+            refreshPeopleList();
+        }
+    }
+
     /**
      * Process incoming message
      */
     private void processIncomingMessage(String message) {
+        // Presence subscription lines, tab-separated: never shown, only applied to the list
+        if (message.startsWith(Protocol.ROSTER_PREFIX)) {
+            String[] fields = message.split("\t", 4);
+            startRoster(Long.parseLong(fields[1]));
+            return;
+        }
+        if (message.startsWith(Protocol.ROSTER_ENTRY_PREFIX)) {
+            addToRoster(message.split("\t", 3)[2]);
+            showPeopleCount();
+            return;
+        }
+        if (message.startsWith(Protocol.ROSTER_ADDED_PREFIX)) {
+            String[] fields = message.split("\t", 4);
+            applyRosterDelta(Long.parseLong(fields[1]), true, fields[3]);
+            return;
+        }
+        if (message.startsWith(Protocol.ROSTER_REMOVED_PREFIX)) {
+            String[] fields = message.split("\t", 3);
+            applyRosterDelta(Long.parseLong(fields[1]), false, fields[2]);
+            return;
+        }
+
         // Filter prompts
         if (message.contains("Please set your username") ||
                 message.contains("Please choose another")) {
@@ -760,14 +1032,19 @@ public class GuiClient extends JFrame {
         // Check for start of user list
         if (message.contains("List of the users connected")) {
             appendMessage(MessageType.SERVER, "", message, RetroTheme.ACCENT_NAVY);
-            peopleModel.clear();
-            peopleModel.addElement("• " + username); // Add self
+            if (rosterVersion < 0) {
+                peopleModel.clear();
+                peopleModel.addElement("• " + username); // Add self
+            }
             return;
         }
 
         // Check for user list item (format: "1) username since ...")
         if (message.matches("\\s*\\d+\\)\\s+\\S+.*since.*")) {
             appendMessage(MessageType.SERVER, "", message, RetroTheme.ACCENT_NAVY);
+            if (rosterVersion >= 0) {
+                return;
+            }
             // Parse/add to people list
             String userPart = message.trim().replaceFirst("\\d+\\)\\s+", "");
             String userName = userPart.split("\\s+since")[0].trim();
@@ -791,10 +1068,10 @@ public class GuiClient extends JFrame {
                     String content = remainder.substring(7).trim();
                     appendMessage(MessageType.SERVER, "", "Server: " + content, RetroTheme.ACCENT_NAVY);
 
-                    // Welcome message - add user to list
+                    // Welcome message - add user to list (ours subscribes to the roster)
                     if (content.startsWith("Welcome ")) {
                         String newUser = content.substring(8).trim();
-                        if (!peopleModel.contains("• " + newUser)) {
+                        if (rosterVersion < 0 && !peopleModel.contains("• " + newUser)) {
                             peopleModel.addElement("• " + newUser);
                             refreshPeopleList();
                         }
@@ -802,12 +1079,46 @@ public class GuiClient extends JFrame {
 			                requestUserList();
                         }
                     }
-                    // Goodbye message - remove user from list
-                    else if (content.startsWith("Goodbye ")) {
+                    // We moved rooms - new title, and a fresh people list unless the roster sent one
+                    else if (content.startsWith("Now chatting in ")) {
+                        headerPanel.updateRoom(content.substring(16).trim());
+                        if (rosterVersion < 0) {
+                            peopleModel.clear();
+                            peopleModel.addElement("• " + username);
+                            requestUserList();
+                        }
+                    }
+                    // Without a roster: goodbye message - remove user from list
+                    else if (rosterVersion < 0 && content.startsWith("Goodbye ")) {
                         String leavingUser = content.substring(8).trim();
                         peopleModel.removeElement("• " + leavingUser);
                         refreshPeopleList();
                     }
+                    // Someone else moved into or out of our room
+                    else if (rosterVersion < 0 && content.endsWith(" joined the room")) {
+                        String newUser = content.substring(0, content.length() - 16);
+                        if (!peopleModel.contains("• " + newUser)) {
+                            peopleModel.addElement("• " + newUser);
+                            refreshPeopleList();
+                        }
+                    } else if (rosterVersion < 0 && content.endsWith(" left the room")) {
+                        String leavingUser = content.substring(0, content.length() - 14);
+                        peopleModel.removeElement("• " + leavingUser);
+                        refreshPeopleList();
+                    }
+                } else if (remainder.startsWith(PRIVATE_TAG + " ")) {
+                    // Private message format: "[private] from -> to: message"
+                    String body = remainder.substring(PRIVATE_TAG.length() + 1);
+                    int arrow = body.indexOf(" -> ");
+                    int colon = body.indexOf(": ", arrow + 4);
+                    if (arrow > 0 && colon > arrow) {
+                        String from = body.substring(0, arrow);
+                        String to = body.substring(arrow + 4, colon);
+                        String content = body.substring(colon + 2);
+                        appendMessage(MessageType.PRIVATE, from + " -> " + to, content, PRIVATE_COLOR);
+                    } else {
+                        appendMessage(MessageType.PRIVATE, "", body, PRIVATE_COLOR);
+                    }
                 } else {
                     // User message format: "username: message"
                     String[] userParts = remainder.split(":\\s+", 2);
@@ -816,7 +1127,7 @@ public class GuiClient extends JFrame {
                         String content = userParts[1];
 
                         // Add user to list if not there
-                        if (!peopleModel.contains("• " + user)) {
+                        if (rosterVersion < 0 && !peopleModel.contains("• " + user)) {
                             peopleModel.addElement("• " + user);
                             refreshPeopleList();
                         }
@@ -858,7 +1169,7 @@ public class GuiClient extends JFrame {
         }
 
         // Send regular message
-        out.println(text);
+        sendCommand(text);
 
         // Check for the special commands
         if (text.equals("Bye")) {
@@ -873,11 +1184,127 @@ public class GuiClient extends JFrame {
     }
 
     /**
-     * Request user list
+     * Request user list: (re)subscribe to presence, the server answers with a fresh roster
      */
     private void requestUserList() {
+        sendCommand("Presence");
+    }
+
+    /**
+     * A roster snapshot starts: drop the old list, entries follow
+     */
+    private void startRoster(long version) {
+        rosterVersion = version;
+        rosterNames.clear();
+        peopleModel.clear();
+    }
+
+    private void addToRoster(String name) {
+        if (!rosterNames.add(name)) {
+            return;
+        }
+        String item = "• " + name;
+        if (!sortAlphabetically) {
+            peopleModel.addElement(item);
+            return;
+        }
+        // Binary search for the spot, the list stays sorted without a full re-sort
+        int low = 0;
+        int high = peopleModel.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (peopleModel.get(mid).compareTo(item) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        peopleModel.add(low, item);
+    }
+
+    /**
+     * Apply one roster change. It must follow the version we have; after a gap the list can
+     * no longer be trusted, so ask for a new snapshot and ignore deltas until it arrives.
+     */
+    private void applyRosterDelta(long version, boolean added, String name) {
+        if (rosterVersion < 0 || version <= rosterVersion) {
+            return;
+        }
+        if (version != rosterVersion + 1) {
+            rosterVersion = -1;
+            requestUserList();
+            return;
+        }
+        rosterVersion = version;
+        if (added) {
+            addToRoster(name);
+        } else if (rosterNames.remove(name)) {
+            peopleModel.removeElement("• " + name);
+        }
+        showPeopleCount();
+    }
+
+    /**
+     * Status bar user count, without re-sorting the list
+     */
+    private void showPeopleCount() {
+        if (isRegistered) {
+            setConnectionStatus("Connected as " + username, true);
+        }
+    }
+
+    /**
+     * Ask for a room name and join it
+     */
+    private void promptJoinRoom() {
+        if (!isRegistered) {
+            return;
+        }
+        String room = JOptionPane.showInputDialog(
+                this,
+                "Enter a room name:",
+                "AOL Chat - Join Room",
+                JOptionPane.PLAIN_MESSAGE
+        );
+        if (room != null && !room.trim().isEmpty()) {
+            sendCommand("Join " + room.trim());
+        }
+    }
+
+    /**
+     * Send a private message to the selected person
+     */
+    private void promptPrivateMessage() {
+        String selected = peopleList.getSelectedValue();
+        if (!isRegistered || selected == null || !selected.startsWith("• ")) {
+            JOptionPane.showMessageDialog(this,
+                    "Select someone in the people list first",
+                    "Private Message",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        String name = selected.substring(2);
+        String text = JOptionPane.showInputDialog(
+                this,
+                "Message to " + name + ":",
+                "AOL Chat - Private Message",
+                JOptionPane.PLAIN_MESSAGE
+        );
+        if (text != null && !text.trim().isEmpty()) {
+            sendCommand("/msg " + name + " " + text.trim());
+        }
+    }
+
+    /**
+     * Send a command line if registered
+     */
+    private void sendCommand(String command) {
         if (isRegistered) {
-            out.println("AllUsers");
+            try {
+                connection.send(command);
+            } catch (IOException e) {
+                appendMessage(MessageType.ERROR, "", "Send failed: " + e.getMessage(), Color.RED);
+            }
         }
     }
 
@@ -885,15 +1312,15 @@ public class GuiClient extends JFrame {
      * Sign off
      */
     private void signOff() {
-        if (isRegistered && out != null) {
-            out.println("Bye");
+        if (connection != null) {
+            sendCommand("Bye");
         }
         running.set(false);
 
         // Close the socket
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            if (connection != null) {
+                connection.close();
             }
         } catch (IOException e) {
             // Ignore
@@ -967,18 +1394,19 @@ public class GuiClient extends JFrame {
             SimpleAttributeSet messageStyle = new SimpleAttributeSet();
             StyleConstants.setForeground(messageStyle, color);
             StyleConstants.setFontSize(messageStyle, (Integer) fontSizeCombo.getSelectedItem());
-            if (type == MessageType.SERVER) {
+            if (type == MessageType.SERVER || type == MessageType.PRIVATE) {
                 StyleConstants.setItalic(messageStyle, true);
             }
 
             // Add timestamp if enabled
-            if (timestampCheck.isSelected() && type == MessageType.USER) {
+            boolean fromUser = type == MessageType.USER || type == MessageType.PRIVATE;
+            if (timestampCheck.isSelected() && fromUser) {
                 String timestamp = "[" + LocalDateTime.now().format(TIME_FORMAT) + "] ";
                 transcriptDoc.insertString(transcriptDoc.getLength(), timestamp, timestampStyle);
             }
 
             // Add username for user messages
-            if (type == MessageType.USER && !username.isEmpty()) {
+            if (fromUser && !username.isEmpty()) {
                 transcriptDoc.insertString(transcriptDoc.getLength(), "<" + username + ">: ", usernameStyle);
             }
 
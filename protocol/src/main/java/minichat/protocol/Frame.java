@@ -0,0 +1,102 @@
+package minichat.protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// A received frame, its fields are read in order with the get methods
+public final class Frame {
+    private final byte type;
+    private final byte[] payload;
+    private int position;
+
+    public Frame(byte type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    // Payload bytes, read or not
+    public int length() {
+        return payload.length;
+    }
+
+    public byte getByte() throws IOException {
+        require(1);
+        return payload[position++];
+    }
+
+    public int getInt() throws IOException {
+        require(4);
+        int value = FrameBuilder.readInt(payload, position);
+        position += 4;
+        return value;
+    }
+
+    public long getLong() throws IOException {
+        require(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (payload[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public String getString() throws IOException {
+        int length = getInt();
+        if (length < 0) {
+            throw new IOException("Malformed frame: negative string length");
+        }
+        require(length);
+        String value = new String(payload, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public boolean hasRemaining() {
+        return position < payload.length;
+    }
+
+    // Whatever is left of the payload
+    public byte[] getRemaining() {
+        byte[] rest = Arrays.copyOfRange(payload, position, payload.length);
+        position = payload.length;
+        return rest;
+    }
+
+    private void require(int count) throws IOException {
+        if (payload.length - position < count) {
+            throw new IOException("Malformed frame: truncated payload");
+        }
+    }
+
+    // Frames packed back to back in data (as inflated from a DEFLATED frame)
+    public static void parseAll(byte[] data, int length, int maxFrame, List<Frame> frames) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (length - offset < Protocol.HEADER_BYTES) {
+                throw new IOException("Malformed frame: truncated header");
+            }
+            int payloadLength = payloadLength(data, offset, maxFrame);
+            int start = offset + Protocol.HEADER_BYTES;
+            if (length - start < payloadLength) {
+                throw new IOException("Malformed frame: truncated payload");
+            }
+            frames.add(new Frame(data[offset], Arrays.copyOfRange(data, start, start + payloadLength)));
+            offset = start + payloadLength;
+        }
+    }
+
+    // Payload length from a frame header, validated against the receiver's limit
+    public static int payloadLength(byte[] header, int offset, int maxFrame) throws IOException {
+        int length = FrameBuilder.readInt(header, offset + 1);
+        if (length < 0 || length > maxFrame) {
+            throw new IOException("Frame too large: " + length);
+        }
+        return length;
+    }
+}
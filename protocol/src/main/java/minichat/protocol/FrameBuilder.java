@@ -0,0 +1,82 @@
+package minichat.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Builds one frame, the header is filled in by build()
+public final class FrameBuilder {
+    private byte[] bytes;
+    private int length;
+
+    public FrameBuilder(byte type) {
+        this(type, 64);
+    }
+
+    public FrameBuilder(byte type, int expectedPayload) {
+        bytes = new byte[Protocol.HEADER_BYTES + expectedPayload];
+        bytes[0] = type;
+        length = Protocol.HEADER_BYTES;
+    }
+
+    public FrameBuilder putByte(int value) {
+        ensure(1);
+        bytes[length++] = (byte) value;
+        return this;
+    }
+
+    public FrameBuilder putInt(int value) {
+        ensure(4);
+        writeInt(bytes, length, value);
+        length += 4;
+        return this;
+    }
+
+    public FrameBuilder putLong(long value) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[length++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    public FrameBuilder putString(String value) {
+        int encoded = Utf8.length(value);
+        putInt(encoded);
+        ensure(encoded);
+        length = Utf8.put(value, bytes, length);
+        return this;
+    }
+
+    public FrameBuilder putBytes(byte[] source, int offset, int count) {
+        ensure(count);
+        System.arraycopy(source, offset, bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    // Finished frame, ready to be written
+    public ByteBuffer build() {
+        writeInt(bytes, 1, length - Protocol.HEADER_BYTES);
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+    static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] source, int offset) {
+        return ((source[offset] & 0xFF) << 24)
+                | ((source[offset + 1] & 0xFF) << 16)
+                | ((source[offset + 2] & 0xFF) << 8)
+                | (source[offset + 3] & 0xFF);
+    }
+}
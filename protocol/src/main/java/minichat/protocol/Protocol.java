@@ -0,0 +1,96 @@
+package minichat.protocol;
+
+// Wire constants shared by server and clients.
+//
+// Every connection starts in the newline-terminated text protocol, with the same username
+// prompt text clients have always seen. A client that wants binary framing answers the prompt
+// with "Protocol binary <highest version it speaks>" before registering. The server replies
+// "Protocol binary <version>" and both sides switch to frames right after that line, or
+// replies "Protocol text" and nothing changes. A server without binary framing takes the
+// offer for a bad registration and prompts again, which also leaves the client on text.
+//
+// Frame layout: u8 type, i32 payload length, payload. Strings are an i32 byte length
+// followed by UTF-8, times are i64 epoch milliseconds.
+//
+// A binary client may ask for compression when it registers (FLAG_DEFLATE). The server then
+// sends DEFLATED frames: a context id and raw deflate data, sync-flushed so it inflates to
+// whole frames. Each context id is one deflate stream; a reader keeps one Inflater per id
+// and an id it has not seen before always starts a fresh stream. A DEFLATE_END frame (sent
+// as is, not compressed) says no more of a stream will reach this reader, a room's stream
+// that starts over or one of a room the reader left, so its Inflater can go. The reader's
+// own stream lasts as long as the connection, it is never ended.
+//
+// A client that sends the "Presence" command gets its room's roster once (ROSTER) and from
+// then on only the changes (ROSTER_DELTA), also after moving rooms, until "Presence off".
+// Versions count the room's membership changes: a delta applies to the roster it directly
+// follows, and a gap means something was missed and "Presence" asks for a fresh snapshot.
+// Deltas at or below the version of the snapshot a client holds are already in it and are
+// skipped (during join/leave storms the server sends them in batches, which can overlap).
+// Text clients get the same as tab-separated lines (names cannot contain tabs):
+//   Roster<TAB>version<TAB>count<TAB>room     then count lines  Roster=<TAB>joined<TAB>name
+//   Roster+<TAB>version<TAB>joined<TAB>name   Roster-<TAB>version<TAB>name
+// with joined in epoch milliseconds.
+public final class Protocol {
+    public static final int BINARY_VERSION = 1;
+    public static final String OFFER_PREFIX = "Protocol binary ";
+    public static final String TEXT_REPLY = "Protocol text";
+
+    public static final int HEADER_BYTES = 5;
+    // Largest frame a server accepts from a client
+    public static final int MAX_CLIENT_FRAME = 64 * 1024;
+    // Largest frame a client accepts from a server (user lists can be long)
+    public static final int MAX_SERVER_FRAME = 16 * 1024 * 1024;
+
+    // Client -> server
+    public static final byte REGISTER = 0x01;   // name, optional flags byte
+    public static final byte CHAT = 0x02;       // text
+    public static final byte COMMAND = 0x03;    // command line: AllUsers, Rooms, Join <room>, Leave, Presence, Stats, Bye
+    public static final byte PRIVATE = 0x04;    // target, text
+
+    // Server -> client
+    public static final byte MESSAGE = 0x41;        // time, sender, text
+    public static final byte PRIVATE_MESSAGE = 0x42; // time, from, to, text
+    public static final byte PRESENCE = 0x43;       // time, kind, user, room
+    public static final byte USER_LIST = 0x44;      // time, room, offset (i64), more, count, (name, joined time)*
+    public static final byte ROOM_LIST = 0x45;      // time, count, (room, users)*
+    public static final byte NOTICE = 0x46;         // time, text
+    public static final byte ERROR = 0x47;          // text
+    public static final byte DEFLATED = 0x48;       // context id, deflate bytes of whole frames
+    public static final byte ROSTER = 0x49;         // time, room, version (i64), count, (name, joined time)*
+    public static final byte ROSTER_DELTA = 0x4A;   // time, version (i64), kind, name, joined time
+    public static final byte DEFLATE_END = 0x4B;    // context id
+
+    // REGISTER flags
+    public static final int FLAG_DEFLATE = 1;
+
+    // PRESENCE kinds
+    public static final byte WELCOME = 1;      // registered (and entered the default room)
+    public static final byte GOODBYE = 2;      // disconnected
+    public static final byte JOINED_ROOM = 3;  // moved into the room
+    public static final byte LEFT_ROOM = 4;    // moved out of the room
+
+    // ROSTER_DELTA kinds
+    public static final byte ROSTER_ADDED = 1;
+    public static final byte ROSTER_REMOVED = 2;
+
+    // Text protocol roster lines
+    public static final String ROSTER_PREFIX = "Roster\t";
+    public static final String ROSTER_ENTRY_PREFIX = "Roster=\t";
+    public static final String ROSTER_ADDED_PREFIX = "Roster+\t";
+    public static final String ROSTER_REMOVED_PREFIX = "Roster-\t";
+
+    private Protocol() {
+    }
+
+    // Version asked for in a "Protocol binary <n>" line, or -1 if the line is not an offer
+    public static int parseOffer(String line) {
+        if (!line.startsWith(OFFER_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(line.substring(OFFER_PREFIX.length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package minichat.protocol;
+
+// UTF-8 straight into a caller's array, measured first, so building a frame or a text line
+// needs no intermediate byte[] per string. Unpaired surrogates become '?', like
+// String.getBytes(UTF_8).
+public final class Utf8 {
+    private Utf8() {
+    }
+
+    // Encoded length of value in bytes
+    public static int length(String value) {
+        int length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                length += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                // Two chars, four bytes
+                length += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    // Encode value into target at offset (which has room for length(value) bytes), returns
+    // the offset after it
+    public static int put(String value, byte[] target, int offset) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                target[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                target[offset++] = (byte) (0xC0 | c >> 6);
+                target[offset++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                target[offset++] = (byte) (0xF0 | codePoint >> 18);
+                target[offset++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                target[offset++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                target[offset++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                target[offset++] = '?';
+            } else {
+                target[offset++] = (byte) (0xE0 | c >> 12);
+                target[offset++] = (byte) (0x80 | c >> 6 & 0x3F);
+                target[offset++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return offset;
+    }
+}
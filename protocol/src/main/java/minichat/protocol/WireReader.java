@@ -0,0 +1,96 @@
+package minichat.protocol;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Blocking reader for a connection that starts with newline-terminated UTF-8 lines and may
+// switch to binary frames. Both share one small buffer, so nothing read ahead is lost at
+// the switch. Stands in for BufferedReader over InputStreamReader, whose fixed 8 KB char
+// and byte buffers are most of the heap an idle blocking connection costs.
+public class WireReader {
+    public static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[512];
+    private int position;
+    private int limit;
+
+    // Bytes of the line currently being assembled
+    private byte[] line = new byte[128];
+    private int lineLength;
+
+    public WireReader(InputStream in) {
+        this.in = in;
+    }
+
+    // Next line without its terminator, or null at end of stream
+    public String readLine() throws IOException {
+        while (true) {
+            if (!fill()) {
+                return null;
+            }
+
+            while (position < limit) {
+                byte b = buffer[position++];
+                if (b == '\n') {
+                    int end = lineLength;
+                    if (end > 0 && line[end - 1] == '\r') {
+                        end--;
+                    }
+                    lineLength = 0;
+                    return new String(line, 0, end, StandardCharsets.UTF_8);
+                }
+                if (lineLength == line.length) {
+                    if (lineLength >= MAX_LINE_BYTES) {
+                        throw new IOException("Line too long");
+                    }
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_BYTES));
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    // Next frame, or null at end of stream
+    public Frame readFrame(int maxFrame) throws IOException {
+        byte[] header = new byte[Protocol.HEADER_BYTES];
+        if (!readFully(header, true)) {
+            return null;
+        }
+        byte[] payload = new byte[Frame.payloadLength(header, 0, maxFrame)];
+        readFully(payload, false);
+        return new Frame(header[0], payload);
+    }
+
+    // False only if the stream ends cleanly before the first byte
+    private boolean readFully(byte[] target, boolean endAllowed) throws IOException {
+        int filled = 0;
+        while (filled < target.length) {
+            if (!fill()) {
+                if (filled == 0 && endAllowed) {
+                    return false;
+                }
+                throw new EOFException("Connection closed mid-frame");
+            }
+            int count = Math.min(limit - position, target.length - filled);
+            System.arraycopy(buffer, position, target, filled, count);
+            position += count;
+            filled += count;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        limit = in.read(buffer);
+        position = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+}
@@ -8,13 +8,16 @@ echo ========================================================
 rem Clean/create directories
 echo Cleaning previous build...
 if exist out rmdir /s /q out
+if exist bench-out rmdir /s /q bench-out
 if exist jar rmdir /s /q jar
 mkdir out
+mkdir bench-out
 mkdir jar
 
 rem Find source files
 echo Collecting source files...
-dir /s /b server\src\main\java\*.java > sources.txt
+dir /s /b protocol\src\main\java\*.java > sources.txt
+dir /s /b server\src\main\java\*.java >> sources.txt
 dir /s /b client\src\main\java\*.java >> sources.txt
 
 rem Count source files
@@ -32,6 +35,17 @@ if %errorlevel% neq 0 (
 
 echo Compile successful.
 
+rem Compile benchmarks separately so they stay out of the application jars
+echo Compiling benchmarks...
+dir /s /b bench\src\main\java\*.java > bench-sources.txt
+javac -encoding UTF-8 -cp out -d bench-out @bench-sources.txt
+if %errorlevel% neq 0 (
+    echo Benchmark compilation failed!
+    del sources.txt bench-sources.txt
+    exit /b 1
+)
+del bench-sources.txt
+
 rem Create server JAR
 echo Creating server.jar...
 jar --create --file jar\server.jar --main-class=minichat.server.Server -C out .
@@ -44,6 +58,10 @@ rem Create client GUI JAR
 echo Creating client-gui.jar...
 jar --create --file jar\client-gui.jar --main-class=minichat.client.gui.GuiClient -C out .
 
+rem Create benchmark JAR
+echo Creating bench.jar...
+jar --create --file jar\bench.jar -C out . -C bench-out .
+
 del sources.txt
 
 echo.
@@ -54,6 +72,7 @@ echo Generated files:
 echo   jar\server.jar
 echo   jar\client.jar
 echo   jar\client-gui.jar
+echo   jar\bench.jar
 echo.
 echo To run:
 echo   Server: java -jar jar\server.jar ^<port^>
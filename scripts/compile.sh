@@ -7,12 +7,13 @@ echo "==================================="
 
 # Clean/create directories
 echo "Cleaning previous build..."
-rm -rf out jar
-mkdir -p out jar
+rm -rf out bench-out jar
+mkdir -p out bench-out jar
 
 # Find Java source files
 echo "Collecting source files..."
-find server/src/main/java -name "*.java" > sources.txt
+find protocol/src/main/java -name "*.java" > sources.txt
+find server/src/main/java -name "*.java" >> sources.txt
 find client/src/main/java -name "*.java" >> sources.txt
 
 # Compile all sources
@@ -27,6 +28,12 @@ else
     exit 1
 fi
 
+# Compile benchmarks separately so they stay out of the application jars
+echo "Compiling benchmarks..."
+find bench/src/main/java -name "*.java" > bench-sources.txt
+javac -encoding UTF-8 -cp out -d bench-out @bench-sources.txt
+rm -f bench-sources.txt
+
 # Create server JAR
 echo "Creating server.jar..."
 jar --create --file jar/server.jar --main-class=minichat.server.Server -C out .
@@ -39,6 +46,10 @@ jar --create --file jar/client.jar --main-class=minichat.client.Client -C out .
 echo "Creating client-gui.jar..."
 jar --create --file jar/client-gui.jar --main-class=minichat.client.gui.GuiClient -C out .
 
+# Create benchmark JAR
+echo "Creating bench.jar..."
+jar --create --file jar/bench.jar -C out . -C bench-out .
+
 rm -f sources.txt
 
 echo ""
@@ -49,6 +60,7 @@ echo "Generated files:"
 echo "  jar/server.jar"
 echo "  jar/client.jar"
 echo "  jar/client-gui.jar"
+echo "  jar/bench.jar"
 echo ""
 echo "To run:"
 echo "  Server: java -jar jar/server.jar <port>"
@@ -0,0 +1,285 @@
+package minichat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Puts every room broadcast in one global order. Broadcasting threads only claim the next
+// sequence number in a bounded, pre-allocated ring and store the room and message there; a
+// single sequencer thread takes what has piled up, in sequence order, and runs it through
+// two stages: record the whole batch (room history and journal, under one journal lock),
+// then fan each message out. Every member queue is fed by that one thread, so all members of
+// a room see its messages in the same order, and broadcasting threads never contend with
+// each other on member queues or the journal.
+//
+// A message for one user that has to follow the broadcasts they caused (the confirmation of
+// their own join, say) takes a slot of its own, and goes only to them.
+//
+// The ring works like EventLog's, except that broadcasting threads finding it full are woken
+// by the sequencer as soon as it has freed a batch, rather than polling for a free slot.
+final class BroadcastSequencer {
+    private static final EventLog LOG = EventLog.get();
+    private static final int MAX_BATCH = 256;
+    // The sequencer is woken on the first broadcast after it goes idle, and a waiting
+    // broadcaster after each batch, these only bound a missed wakeup
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int FULL_SPINS = 100;
+    // How long close() waits for the ring to drain
+    private static final long CLOSE_WAIT_MILLIS = 1000;
+    // Marks the tail once closed, far above any sequence number the ring reaches
+    private static final long CLOSED = 1L << 62;
+
+    private final SessionRegistry registry;
+    private final MessageJournal journal;
+
+    // Multi-producer ring: slot i is free for sequence s when sequences[i] == s
+    // and ready for the sequencer when sequences[i] == s + 1
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Room[] rooms;
+    // Set instead of the room for a message to one user
+    private final ClientSession[] recipients;
+    private final OutboundMessage[] messages;
+    private final boolean[] records;
+    // Next sequence number to hand out, with CLOSED set once close() has run. Setting the bit
+    // fails any claim still in flight, so every sequence number handed out is below the final tail.
+    private final AtomicLong tail = new AtomicLong();
+    // Every broadcast before this one has been fanned out
+    private volatile long head;
+    private volatile long batches;
+
+    private final Thread thread;
+    private volatile boolean idle;
+    // Broadcasters waiting for the ring to have room
+    private final ReentrantLock fullLock = new ReentrantLock();
+    private final Condition notFull = fullLock.newCondition();
+    private volatile int waiting;
+
+    BroadcastSequencer(SessionRegistry registry, MessageJournal journal, int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Sequencer buffer must hold at least 2 broadcasts: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.registry = registry;
+        this.journal = journal;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.rooms = new Room[size];
+        this.recipients = new ClientSession[size];
+        this.messages = new OutboundMessage[size];
+        this.records = new boolean[size];
+
+        thread = new Thread(this::run, "sequencer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Configured by -Dminichat.sequencer.buffer=<broadcasts> (ring capacity), null (every
+    // broadcast goes out on its own thread) unless set
+    static BroadcastSequencer fromSystemProperties(SessionRegistry registry, MessageJournal journal) {
+        int capacity = Integer.getInteger("minichat.sequencer.buffer", 0);
+        return capacity > 0 ? new BroadcastSequencer(registry, journal, capacity) : null;
+    }
+
+    // Any thread: queue a room broadcast (recorded first if record is set), returns its
+    // sequence number, or -1 once closed (the caller then sends it itself). Only waits if
+    // the ring is full.
+    long publish(Room room, OutboundMessage message, boolean record) {
+        long sequence = claim();
+        if (sequence >= 0) {
+            int i = index(sequence);
+            rooms[i] = room;
+            messages[i] = message;
+            records[i] = record;
+            commit(i, sequence);
+        }
+        return sequence;
+    }
+
+    // Same for a message to one user, which is never recorded
+    long publish(ClientSession recipient, OutboundMessage message) {
+        long sequence = claim();
+        if (sequence >= 0) {
+            int i = index(sequence);
+            recipients[i] = recipient;
+            messages[i] = message;
+            records[i] = false;
+            commit(i, sequence);
+        }
+        return sequence;
+    }
+
+    // The next sequence number and its slot, -1 once closed
+    private long claim() {
+        long sequence;
+        int attempts = 0;
+        while (true) {
+            sequence = tail.get();
+            if ((sequence & CLOSED) != 0) {
+                return -1;
+            }
+            long slot = sequences.get(index(sequence));
+            if (slot == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+            } else if (slot < sequence) {
+                // Full: the sequencer has not freed this slot since the last lap
+                if (attempts++ == 0) {
+                    LockSupport.unpark(thread);
+                }
+                if (attempts < FULL_SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    awaitRoom(sequence);
+                }
+            }
+            // Otherwise another thread took this sequence number first, try the next one
+        }
+        return sequence;
+    }
+
+    // Hand a filled slot to the sequencer
+    private void commit(int i, long sequence) {
+        // Publishes the slot's fields to the sequencer
+        sequences.lazySet(i, sequence + 1);
+
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void awaitRoom(long sequence) {
+        fullLock.lock();
+        try {
+            waiting++;
+            // Counted before the recheck, so a batch freed after it signals us
+            if (sequences.get(index(sequence)) < sequence) {
+                notFull.awaitNanos(FULL_WAIT_NANOS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting--;
+            fullLock.unlock();
+        }
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+
+    // Sequencer thread: record, then fan out, each batch in sequence order
+    private void run() {
+        long next = head;
+        while (true) {
+            long end = next;
+            while (end - next < MAX_BATCH && sequences.get(index(end)) == end + 1) {
+                end++;
+            }
+
+            if (end > next) {
+                record(next, end);
+                fanOut(next, end);
+                next = end;
+                head = next;
+                batches++;
+                if (waiting > 0) {
+                    fullLock.lock();
+                    try {
+                        notFull.signalAll();
+                    } finally {
+                        fullLock.unlock();
+                    }
+                }
+                continue;
+            }
+
+            long last = tail.get();
+            if ((last & CLOSED) != 0 && next == (last & ~CLOSED)) {
+                // Everything handed a sequence number before close() is out
+                return;
+            }
+            idle = true;
+            // Recheck after announcing, a broadcast published before that would not unpark us
+            if (sequences.get(index(next)) != next + 1) {
+                idle = false;
+                continue;
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            idle = false;
+        }
+    }
+
+    // Frees each slot as soon as its broadcast is out
+    private void fanOut(long from, long to) {
+        for (long sequence = from; sequence < to; sequence++) {
+            int i = index(sequence);
+            try {
+                if (recipients[i] != null) {
+                    registry.deliver(recipients[i], messages[i]);
+                } else {
+                    registry.fanOut(rooms[i], messages[i]);
+                }
+            } catch (RuntimeException e) {
+                // Loses this broadcast, not the ones after it
+                LOG.error("Sequencer: broadcast to {} failed: {}",
+                        recipients[i] != null ? recipients[i].username : rooms[i].name, e);
+            }
+            rooms[i] = null;
+            recipients[i] = null;
+            messages[i] = null;
+            sequences.lazySet(i, sequence + mask + 1);
+        }
+    }
+
+    private void record(long from, long to) {
+        if (journal != null) {
+            journal.lock();
+        }
+        try {
+            for (long sequence = from; sequence < to; sequence++) {
+                int i = index(sequence);
+                if (records[i]) {
+                    registry.record(rooms[i], messages[i]);
+                }
+            }
+        } finally {
+            if (journal != null) {
+                journal.unlock();
+            }
+        }
+    }
+
+    // Stop taking broadcasts, and wait (a little) for the sequencer to send out the ones
+    // already published
+    void close() {
+        long last;
+        do {
+            last = tail.get();
+        } while ((last & CLOSED) == 0 && !tail.compareAndSet(last, last | CLOSED));
+        LockSupport.unpark(thread);
+        try {
+            thread.join(CLOSE_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Broadcasts fanned out so far
+    long getSequenced() {
+        return head;
+    }
+
+    // Batches they were fanned out in
+    long getBatches() {
+        return batches;
+    }
+}
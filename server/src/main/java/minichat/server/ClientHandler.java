@@ -3,144 +3,539 @@ package minichat.server;
 import java.io.*;
 import java.net.*;
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.regex.*;
+import minichat.protocol.Frame;
+import minichat.protocol.FrameBuilder;
+import minichat.protocol.Protocol;
+import minichat.protocol.WireReader;
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
     private final Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private final Closeable connection;
+    // The event loop's connection, null in blocking mode
+    private final NioConnection nio;
+    private WireReader in;
+    private SessionOutput out;
     private final SessionRegistry registry;
+    private final Executor writers;
+    private final OutboundConfig outboundConfig;
+    private final ServerMetrics metrics;
+    // Connected from this machine, which is what allows the Stats command
+    private final boolean local;
     private String username;
+    private String room;
+    // Switched on by a "Protocol binary <n>" line before registration
+    private boolean binary;
     private static final Pattern USERNAME_PATTERN = Pattern.compile("^username\\s*=\\s*(\\S.*)$");
-    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final EventLog LOG = EventLog.get();
+    private static final int DEFAULT_HISTORY = 20;
 
-    public ClientHandler(Socket socket, SessionRegistry registry) {
+    // Blocking mode: the handler owns the socket and runs its own read loop,
+    // writes are queued and drained on the writers executor
+    public ClientHandler(Socket socket, SessionRegistry registry, Executor writers, OutboundConfig outboundConfig,
+                         ServerMetrics metrics) {
         this.socket = socket;
+        this.connection = socket;
+        this.nio = null;
         this.registry = registry;
+        this.writers = writers;
+        this.outboundConfig = outboundConfig;
+        this.metrics = metrics;
+        this.local = socket.getInetAddress() != null && socket.getInetAddress().isLoopbackAddress();
+    }
+
+    // Event-driven mode: an event loop pushes complete lines into handleLine()
+    // (or frames into handleFrame() once binary framing is negotiated)
+    ClientHandler(NioConnection connection, SessionRegistry registry, ServerMetrics metrics, boolean local) {
+        this.socket = null;
+        this.connection = connection;
+        this.nio = connection;
+        this.out = connection;
+        this.registry = registry;
+        this.writers = null;
+        this.outboundConfig = null;
+        this.metrics = metrics;
+        this.local = local;
     }
 
     @Override
     public void run() {
         try {
             // Setup I/O streams w UTF-8 encoding
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+            in = new WireReader(new CountingInputStream(socket.getInputStream(), metrics));
+            out = new StreamOutput(socket.getOutputStream(), outboundConfig, writers, metrics);
 
-            // Registration
-            if (!handleRegistration()) {
-                return;
-            }
+            greet();
 
-            // Chat loop
-            handleChatLoop();
+            while (true) {
+                if (binary) {
+                    Frame frame = in.readFrame(Protocol.MAX_CLIENT_FRAME);
+                    if (frame == null || !handleFrame(frame)) {
+                        break;
+                    }
+                } else {
+                    String line = in.readLine();
+                    if (line == null || !handleLine(line)) {
+                        break;
+                    }
+                }
+            }
 
         } catch (IOException e) {
-            System.err.println("Client handler error: " + e.getMessage());
+            LOG.warn("Client handler error: {}", e.getMessage());
         } finally {
             cleanup();
         }
     }
 
-    private boolean handleRegistration() throws IOException {
+    // Send the registration prompt. Binary framing is not advertised in it, clients that want
+    // it offer it, so text clients see the prompt they always did.
+    void greet() {
         out.println("Please set your username: username = <name>");
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // Handle one line from the client, returns false once the session should end
+    boolean handleLine(String line) {
+        metrics.messageIn();
+        MessageReceiveEvent event = new MessageReceiveEvent();
+        event.begin();
+        try {
+            return dispatchLine(line);
+        } finally {
+            commitReceive(event, line.length());
+        }
+    }
+
+    // Only fills in and records the event when it took longer than its threshold
+    private void commitReceive(MessageReceiveEvent event, int length) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.user = username;
+            event.binary = binary;
+            event.length = length;
+            event.commit();
+        }
+    }
 
-        String line;
-        while ((line = in.readLine()) != null) {
-            line = line.trim();
-            if (line.isEmpty()) {
-                continue;
+    private boolean dispatchLine(String line) {
+        line = line.trim();
+        if (line.isEmpty()) {
+            return true;
+        }
+
+        if (username == null) {
+            int version = Protocol.parseOffer(line);
+            if (version >= 0) {
+                negotiate(version);
+            } else {
+                handleRegistration(line);
             }
+            return true;
+        }
+        return handleChatLine(line);
+    }
 
-            Matcher matcher = USERNAME_PATTERN.matcher(line);
-            if (matcher.matches()) {
-                String proposedName = matcher.group(1).trim();
+    // Answer a binary framing offer, frames start right after our reply
+    private void negotiate(int version) {
+        if (version < 1) {
+            out.println(Protocol.TEXT_REPLY);
+            return;
+        }
+        int agreed = Math.min(version, Protocol.BINARY_VERSION);
+        out.println(Protocol.OFFER_PREFIX + agreed);
+        binary = true;
+        LOG.debug("Client switched to binary framing, version {}", agreed);
+    }
 
-                if (proposedName.isEmpty()) {
-                    out.println("Username cannot be empty. Please try again: username = <name>");
-                    continue;
+    // Handle one frame from a binary client: typed fields, so no pattern matching.
+    // Returns false once the session should end.
+    boolean handleFrame(Frame frame) throws IOException {
+        metrics.messageIn();
+        MessageReceiveEvent event = new MessageReceiveEvent();
+        event.begin();
+        try {
+            return dispatchFrame(frame);
+        } finally {
+            commitReceive(event, frame.length());
+        }
+    }
+
+    private boolean dispatchFrame(Frame frame) throws IOException {
+        byte type = frame.type();
+        if (username == null) {
+            if (type == Protocol.REGISTER) {
+                String name = frame.getString().trim();
+                int flags = frame.hasRemaining() ? frame.getByte() : 0;
+                register(name, (flags & Protocol.FLAG_DEFLATE) != 0);
+            } else {
+                sendError("Register first");
+            }
+            return true;
+        }
+
+        switch (type) {
+            case Protocol.CHAT: {
+                String text = singleLine(frame.getString());
+                if (!text.isEmpty()) {
+                    sendChat(text);
+                }
+                return true;
+            }
+            case Protocol.COMMAND: {
+                String command = frame.getString().trim();
+                if (isCommand(command)) {
+                    return handleCommand(command);
                 }
+                sendError("Unknown command: " + command);
+                return true;
+            }
+            case Protocol.PRIVATE: {
+                String target = frame.getString().trim();
+                String text = singleLine(frame.getString());
+                handleDirectMessage(target, text);
+                return true;
+            }
+            default:
+                sendError("Unknown frame type: " + type);
+                return true;
+        }
+    }
 
-                // Try to register username
-                if (registry.add(proposedName, out, Instant.now())) {
-                    this.username = proposedName;
+    // Text clients can only send single lines, binary ones must not be able to forge extra lines
+    private static String singleLine(String text) {
+        return text.replace('\r', ' ').replace('\n', ' ').trim();
+    }
 
-                    // Print to server console with timestamp
-                    String timestamp = LocalDateTime.now().format(TIME_FORMAT);
-                    System.out.println(timestamp + " Welcome " + username);
+    private void handleRegistration(String line) {
+        String proposedName = usernameFrom(line);
+        if (proposedName != null) {
+            register(proposedName, false);
+        } else {
+            out.println("Please set your username: username = <name>");
+        }
+    }
 
-                    // Broadcast welcome message 
-                    registry.broadcastServer("Welcome " + username);
-                    return true;
-                } else {
-                    out.println("Username already taken. Please choose another: username = <name>");
+    // Compression is only offered to binary clients, it rides on DEFLATED frames
+    private void register(String proposedName, boolean deflate) {
+        if (proposedName.isEmpty()) {
+            refuseName("Username cannot be empty", "Please try again: username = <name>");
+            return;
+        }
+        if (!isValidUsername(proposedName)) {
+            refuseName("Username cannot contain control characters", "Please try again: username = <name>");
+            return;
+        }
+
+        // Try to register username
+        SessionOutput writer = deflate && binary ? new DeflatingOutput(out) : out;
+        CompletableFuture<Boolean> added = registry.register(proposedName, writer, Instant.now(), binary);
+        if (nio != null && !added.isDone()) {
+            // Claiming the name from another cluster node: the loop serves its other connections
+            // meanwhile, and reads nothing more from this one until the answer is in
+            nio.pauseReading();
+            added.thenAccept(ok -> nio.runOnLoop(() -> {
+                if (nio.isClosed()) {
+                    // Gone while waiting, so nobody will clean up after it
+                    if (ok) {
+                        registry.remove(proposedName, writer);
+                    }
+                    if (writer != out) {
+                        writer.close();
+                    }
+                    return;
                 }
-            } else {
-                out.println("Please set your username: username = <name>");
+                registered(proposedName, writer, ok);
+                nio.resumeReading();
+            }));
+            return;
+        }
+        // A blocking handler has its own thread to wait on
+        registered(proposedName, writer, added.join());
+    }
+
+    private void registered(String proposedName, SessionOutput writer, boolean added) {
+        boolean compressed = writer != out;
+        if (added) {
+            this.out = writer;
+            this.username = proposedName;
+            this.room = SessionRegistry.DEFAULT_ROOM;
+
+            // Server log (the console by default), timestamped by the log
+            LOG.info("Welcome {}", username);
+            if (compressed) {
+                LOG.debug("{} receives compressed frames", username);
+            }
+
+            // Broadcast welcome message to the room they start in
+            registry.broadcastPresence(room, Protocol.WELCOME, username);
+        } else {
+            if (compressed) {
+                // Each retry makes a new one, free this compressor now rather than at GC
+                ((DeflatingOutput) writer).release();
             }
+            refuseName("Username already taken", "Please choose another: username = <name>");
         }
+    }
 
-        return false; // Connection closed during registration
+    // Text clients get the reason followed by the prompt on one line
+    private void refuseName(String reason, String prompt) {
+        sendError(binary ? reason : reason + ". " + prompt);
     }
 
-    private void handleChatLoop() throws IOException {
-        String line;
-        while ((line = in.readLine()) != null) {
-            line = line.trim();
-            if (line.isEmpty()) {
-                continue;
+    private static boolean isValidUsername(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            // Check for special commands
-            if (line.equals("Bye")) {
-                String timestamp = LocalDateTime.now().format(TIME_FORMAT);
-                System.out.println(timestamp + " " + username + " left the server.");
-                // This will handle the goodbye broadcast
-                break; // Trigger cleanup
-            } else if (line.equals("AllUsers")) {
-                // Send user list to the requesting client
-                registry.sendUserList(username, out);
-            } else {
-                // Check if message wromgl starts with "username = "
-                // Handles bug where client might still send it
-                Matcher matcher = USERNAME_PATTERN.matcher(line);
-                if (matcher.matches()) {
-                    // Extract the actual message
-                    String actualMessage = matcher.group(1).trim();
-                    // Print to server
-                    String timestamp = LocalDateTime.now().format(TIME_FORMAT);
-                    System.out.println(timestamp + " " + username + ": " + actualMessage);
-                    // Broadcast actual message without the prefix
-                    registry.broadcastFrom(username, actualMessage);
-                } else {
-                    // Print to server console
-                    String timestamp = LocalDateTime.now().format(TIME_FORMAT);
-                    System.out.println(timestamp + " " + username + ": " + line);
-                    // Broadcast regular message as-is
-                    registry.broadcastFrom(username, line);
-                }
+    private boolean handleChatLine(String line) {
+        MessageParseEvent parse = new MessageParseEvent();
+        parse.begin();
+        boolean command = isCommand(line);
+        // Check if message wromgl starts with "username = "
+        // Handles bug where client might still send it
+        String withoutPrefix = command ? null : usernameFrom(line);
+        parse.end();
+        if (parse.shouldCommit()) {
+            parse.user = username;
+            parse.command = command;
+            parse.commit();
+        }
+
+        if (command) {
+            return handleCommand(line);
+        }
+        // Broadcast actual message without the prefix, or the regular message as-is
+        sendChat(withoutPrefix != null ? withoutPrefix : line);
+        return true;
+    }
+
+    // The trimmed value of a "username = <name>" line, null for any other line.
+    // Public so the benchmarks can time it.
+    public static String usernameFrom(String line) {
+        Matcher matcher = USERNAME_PATTERN.matcher(line);
+        return matcher.matches() ? matcher.group(1).trim() : null;
+    }
+
+    private static boolean isCommand(String line) {
+        return line.equals("Bye") || line.equals("AllUsers") || line.startsWith("AllUsers ") || line.equals("Rooms")
+                || line.equals("Join") || line.startsWith("Join ") || line.equals("Leave")
+                || line.equals("History") || line.startsWith("History ")
+                || line.equals("Presence") || line.startsWith("Presence ")
+                || line.equals("Stats")
+                || line.equals("/msg") || line.startsWith("/msg ");
+    }
+
+    // Log and broadcast to our room
+    private void sendChat(String text) {
+        LOG.info("{}: {}", username, text);
+        registry.broadcastFrom(username, text);
+    }
+
+    // Run a command accepted by isCommand(), returns false once the session should end
+    private boolean handleCommand(String line) {
+        // Check for special commands
+        if (line.equals("Bye")) {
+            LOG.info("{} left the server.", username);
+            // This will handle the goodbye broadcast
+            return false; // Trigger cleanup
+        } else if (line.equals("AllUsers") || line.startsWith("AllUsers ")) {
+            // Send user list to the requesting client
+            handleUserList(line.substring(8).trim());
+        } else if (line.equals("Rooms")) {
+            registry.sendRoomList(username, out);
+        } else if (line.equals("Join") || line.startsWith("Join ")) {
+            handleJoin(line.substring(4).trim());
+        } else if (line.equals("Leave")) {
+            handleJoin(SessionRegistry.DEFAULT_ROOM);
+        } else if (line.equals("History") || line.startsWith("History ")) {
+            handleHistory(line.substring(7).trim());
+        } else if (line.equals("Presence") || line.startsWith("Presence ")) {
+            handlePresence(line.substring(8).trim());
+        } else if (line.equals("Stats")) {
+            handleStats();
+        } else if (line.equals("/msg") || line.startsWith("/msg ")) {
+            String args = line.substring(4).trim();
+            int split = args.indexOf(' ');
+            String target = split < 0 ? args : args.substring(0, split);
+            String text = split < 0 ? "" : args.substring(split + 1).trim();
+            handleDirectMessage(target, text);
+        }
+        return true;
+    }
+
+    // Move to another room, telling the old room, the new room and the user
+    private void handleJoin(String target) {
+        if (!SessionRegistry.isValidRoomName(target)) {
+            sendError("Usage: Join <room> (1-" + SessionRegistry.MAX_ROOM_NAME_LENGTH + " characters)");
+            return;
+        }
+        if (target.equals(room)) {
+            sendError("Already in " + room);
+            return;
+        }
+
+        String previous = registry.join(username, target);
+        room = target;
+        if (previous != null) {
+            registry.broadcastPresence(previous, Protocol.LEFT_ROOM, username);
+        }
+        registry.broadcastPresence(target, Protocol.JOINED_ROOM, username);
+        // Through the registry, so it follows the announcements above if they are sequenced
+        registry.sendServerNotice(username, "Now chatting in " + target);
+
+        LOG.info("{} joined {}", username, target);
+    }
+
+    // "AllUsers [prefix] [page]": a page of our room's users, in name order. A trailing number
+    // is the page, so a numeric prefix needs the page after it ("AllUsers 42 1").
+    private void handleUserList(String args) {
+        String prefix = args;
+        int page = 1;
+        int split = args.lastIndexOf(' ');
+        String last = args.substring(split + 1);
+        if (!last.isEmpty() && last.chars().allMatch(Character::isDigit)) {
+            try {
+                page = Integer.parseInt(last);
+            } catch (NumberFormatException e) {
+                page = 0;
+            }
+            prefix = split < 0 ? "" : args.substring(0, split).trim();
+        }
+        if (page < 1) {
+            sendError("Usage: AllUsers [prefix] [page]");
+            return;
+        }
+        registry.sendUserList(username, out, prefix, page);
+    }
+
+    // "History [n]": the last n (default 20) messages of our room, from memory
+    private void handleHistory(String count) {
+        int n = DEFAULT_HISTORY;
+        if (!count.isEmpty()) {
+            try {
+                n = Integer.parseInt(count);
+            } catch (NumberFormatException e) {
+                n = 0;
+            }
+            if (n < 1) {
+                sendError("Usage: History [n] (1-" + Math.max(1, RoomHistory.CAPACITY) + ")");
+                return;
             }
         }
+        registry.sendHistory(username, out, n);
+    }
+
+    // "Presence [on|off]": follow our room's roster as a snapshot plus deltas (or stop)
+    private void handlePresence(String mode) {
+        if (mode.isEmpty() || mode.equals("on")) {
+            registry.setPresence(username, true);
+        } else if (mode.equals("off")) {
+            registry.setPresence(username, false);
+        } else {
+            sendError("Usage: Presence [on|off]");
+        }
     }
 
-    private void cleanup() {
+    // "Stats": the server's metrics, only for clients on the server's own machine
+    private void handleStats() {
+        if (!local) {
+            sendError("Stats is only available from the server's machine");
+            return;
+        }
+        registry.sendStats(username, out);
+    }
+
+    // "/msg <user> <text>": goes to that one user (and back to us), not the room
+    private void handleDirectMessage(String target, String text) {
+        if (target.isEmpty() || text.isEmpty()) {
+            sendError("Usage: /msg <user> <message>");
+            return;
+        }
+
+        if (registry.sendDirect(username, target, text)) {
+            LOG.info("{} -> {} (private)", username, target);
+        } else {
+            sendError("No such user: " + target);
+        }
+    }
+
+    // Server line to this client only, same format as broadcasts
+    private void sendServerNotice(String text) {
+        out.send(OutboundMessage.notice(text).encoded(binary));
+    }
+
+    // A refused request. Text clients get the line they always got (a bare prompt before
+    // registration, a server notice after), binary clients an ERROR frame.
+    private void sendError(String text) {
+        if (binary) {
+            out.send(new FrameBuilder(Protocol.ERROR).putString(text).build());
+        } else if (username == null) {
+            out.println(text);
+        } else {
+            sendServerNotice(text);
+        }
+    }
+
+    void cleanup() {
         try {
             if (username != null) {
-                registry.remove(username);
-                // Broadcast goodbye message
-                registry.broadcastServer("Goodbye " + username);
+                // Broadcast goodbye message to the room they were in. Not if the name has
+                // another owner by now: evicted after a cluster partition, that user is still online.
+                if (registry.remove(username, out) || !registry.isTaken(username)) {
+                    registry.broadcastPresence(room, Protocol.GOODBYE, username);
+                }
 
-                // Print to server
-                String timestamp = LocalDateTime.now().format(TIME_FORMAT);
-                System.out.println(timestamp + " Server: Goodbye " + username);
+                LOG.info("Server: Goodbye {}", username);
+                username = null;
             }
 
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            if (out instanceof DeflatingOutput) {
+                // Frees the compressor's native memory as well
+                out.close();
+            }
+            if (connection != null) {
+                connection.close();
             }
         } catch (IOException e) {
-            System.err.println("Error during cleanup: " + e.getMessage());
+            LOG.warn("Error during cleanup: {}", e.getMessage());
+        }
+    }
+
+    // Counts what the blocking read loop receives, one add per read call
+    private static final class CountingInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        CountingInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                metrics.received(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                metrics.received(count);
+            }
+            return count;
         }
     }
 }
@@ -0,0 +1,39 @@
+package minichat.server;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+// A registered user: where their messages go and which room they are in
+final class ClientSession {
+    private static final DateTimeFormatter FULL_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy");
+
+    final String username;
+    final SessionOutput writer;
+    final Instant joinedAt;
+    // "name since <join date>" for AllUsers, rendered once instead of on every listing
+    final String listEntry;
+    // Negotiated binary framing instead of text lines
+    final boolean binary;
+    // Set when the client negotiated compression (writer is then this same object)
+    final DeflatingOutput deflating;
+    volatile Room room;
+    // Subscribed to the room's roster: a snapshot on entering a room, deltas after that
+    volatile boolean presence;
+
+    ClientSession(String username, SessionOutput writer, Instant joinedAt, boolean binary) {
+        this.username = username;
+        this.writer = writer;
+        this.joinedAt = joinedAt;
+        this.listEntry = username + " since "
+                + ZonedDateTime.ofInstant(joinedAt, ZoneId.systemDefault()).format(FULL_DATE_FORMAT);
+        this.binary = binary;
+        this.deflating = writer instanceof DeflatingOutput ? (DeflatingOutput) writer : null;
+    }
+
+    // A user of another cluster node, only ever listed: it has no writer here
+    static ClientSession remote(String username, Instant joinedAt) {
+        return new ClientSession(username, null, joinedAt, false);
+    }
+}
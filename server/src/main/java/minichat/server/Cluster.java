@@ -0,0 +1,704 @@
+package minichat.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import minichat.protocol.Frame;
+import minichat.protocol.FrameBuilder;
+import minichat.protocol.Protocol;
+import minichat.protocol.WireReader;
+
+// Links this server to the other nodes of a cluster: one TCP link per pair of nodes (the node
+// with the lower id dials), each speaking the client protocol's frame layout with the types
+// below. Every node relays what its own users say to every peer once, and peers never relay
+// further, so a message reaches each node exactly once over the full mesh.
+//
+// Usernames stay unique across the cluster: each name is owned by one node, picked by
+// rendezvous hashing over all configured nodes, and a node registering a name first claims
+// it from the owner (without waiting for the answer, see claim()). While the owner is
+// unreachable its names cannot be registered. A link that drops frees the names its node held,
+// so after a partition heals two nodes may both have a user by the same name: the node's full
+// list re-claims its names, and the owner keeps whoever holds the name now and evicts the other.
+//
+// Nodes also tell each other who joined, moved and left, so every node can list the users of
+// a room cluster-wide (they are in each room's name index, but not among its members, so a
+// broadcast never writes to them). A link that comes up starts with the full list of the
+// node's users, and a link that drops takes the users and claims of that node with it.
+//
+// An edge tier uses the same links in a star instead: each edge links to the core only, the
+// core owns every name and passes whatever one edge sends on to all the others. A broadcast
+// then costs the core one write per edge, and each edge fans it out to its own clients.
+final class Cluster implements Closeable {
+    private static final EventLog LOG = EventLog.get();
+
+    // Link frames
+    private static final byte HELLO = 0x61;         // node id
+    private static final byte CLAIM = 0x62;         // request id (i64), name
+    private static final byte GRANT = 0x63;         // request id (i64), granted (u8)
+    private static final byte USER_ADDED = 0x64;    // name, room, joined time
+    private static final byte USER_MOVED = 0x65;    // name, room
+    private static final byte USER_REMOVED = 0x66;  // name
+    private static final byte CHAT = 0x67;          // room, sender, text
+    private static final byte NOTICE = 0x68;        // room ("" for every room), text
+    private static final byte PRESENCE = 0x69;      // room, kind, user
+    private static final byte DIRECT = 0x6A;        // from, to, text
+    private static final byte EVICT = 0x6B;         // name, joined time
+
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    // Relays a link may have queued; a peer that falls further behind is dropped and resynced
+    private static final int LINK_QUEUE = 64 * 1024;
+
+    private final ClusterRole role;
+    private final String self;
+    private final List<String> peers;
+    // Every node id, this one included: the candidates for owning a name
+    private final List<String> nodes;
+    private final SessionRegistry registry;
+    // Null on an edge, which only dials
+    private final ServerSocket listener;
+    private final OutboundConfig linkConfig = new OutboundConfig(LINK_QUEUE, OverflowPolicy.DISCONNECT);
+    // Link traffic is kept out of the server's client metrics
+    private final ServerMetrics linkMetrics = new ServerMetrics();
+    private final ExecutorService writers;
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    // Peers dialed whose link has not ended yet (a peer still starting up may take a while to answer)
+    private final Set<String> dialed = ConcurrentHashMap.newKeySet();
+
+    // Names this node owns, by the node that holds them (this one included)
+    private final ConcurrentHashMap<String, String> claims = new ConcurrentHashMap<>();
+    // Claims sent to their owner and not answered yet
+    private final ConcurrentHashMap<Long, PendingClaim> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+
+    // Users of other nodes by name, and by room for rooms this node opens later
+    private final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<ClientSession>> remoteByRoom = new ConcurrentHashMap<>();
+
+    // Held while a local join, move or leave is sent to the links, and while a new link is
+    // sent the full list, so no link gets a change before the list or a stale entry after it
+    private final ReentrantLock rosterLock = new ReentrantLock();
+    private volatile boolean closed;
+
+    // An established link to one peer
+    private static final class Link {
+        final String id;
+        final Socket socket;
+        final StreamOutput out;
+
+        Link(String id, Socket socket, StreamOutput out) {
+            this.id = id;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void close() {
+            out.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static final class PendingClaim {
+        final String owner;
+        final CompletableFuture<Boolean> granted = new CompletableFuture<>();
+
+        PendingClaim(String owner) {
+            this.owner = owner;
+        }
+    }
+
+    // A user of another node. Only that node's link thread changes it.
+    private static final class RemoteUser {
+        final String node;
+        final ClientSession session;
+        volatile String room;
+
+        RemoteUser(String node, ClientSession session, String room) {
+            this.node = node;
+            this.session = session;
+            this.room = room;
+        }
+    }
+
+    Cluster(ClusterConfig config, SessionRegistry registry) throws IOException {
+        this.role = config.getRole();
+        this.self = config.getSelf();
+        this.peers = config.getPeers();
+        List<String> all = new ArrayList<>(peers);
+        all.add(self);
+        Collections.sort(all);
+        this.nodes = Collections.unmodifiableList(all);
+        this.registry = registry;
+        if (role == ClusterRole.EDGE) {
+            this.listener = null;
+        } else {
+            this.listener = new ServerSocket();
+            this.listener.bind(ClusterConfig.address(self));
+        }
+        AtomicInteger writerIds = new AtomicInteger();
+        this.writers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "cluster-writer-" + writerIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Accept the lower nodes' links and keep dialing the higher ones (a core only accepts,
+    // an edge only dials)
+    void start() {
+        if (listener != null) {
+            daemon(this::acceptLoop, "cluster-accept").start();
+        }
+        if (!peers.isEmpty()) {
+            daemon(this::dialLoop, "cluster-dial").start();
+        }
+        LOG.info("Cluster {}", describe());
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept();
+                daemon(() -> runLink(socket, null), "cluster-link").start();
+            } catch (IOException e) {
+                if (!closed) {
+                    LOG.error("Cluster accept failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void dialLoop() {
+        while (!closed) {
+            for (String peer : peers) {
+                if ((role == ClusterRole.EDGE || peer.compareTo(self) > 0) && !closed && dialed.add(peer)) {
+                    try {
+                        Socket socket = new Socket();
+                        socket.connect(ClusterConfig.address(peer), CONNECT_TIMEOUT_MILLIS);
+                        daemon(() -> runLink(socket, peer), "cluster-link-" + peer).start();
+                    } catch (IOException e) {
+                        // Not up yet, try again next round
+                        dialed.remove(peer);
+                    }
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Link thread: exchange ids, send our users, then handle the peer's frames until it drops.
+    // expected is the peer dialed, null for an accepted link.
+    private void runLink(Socket socket, String expected) {
+        Link link = null;
+        try {
+            socket.setTcpNoDelay(true);
+            WireReader in = new WireReader(socket.getInputStream());
+            StreamOutput out = new StreamOutput(socket.getOutputStream(), linkConfig, writers, linkMetrics);
+            out.send(new FrameBuilder(HELLO).putString(self).build());
+
+            Frame hello = in.readFrame(Protocol.MAX_SERVER_FRAME);
+            if (hello == null) {
+                socket.close();
+                return;
+            }
+            String id = linkId(hello.type() == HELLO ? hello.getString() : null, expected);
+            if (id == null) {
+                LOG.warn("Cluster link from {} refused: unexpected node", socket.getRemoteSocketAddress());
+                out.close();
+                socket.close();
+                return;
+            }
+
+            link = new Link(id, socket, out);
+            rosterLock.lock();
+            try {
+                Link previous = links.put(id, link);
+                if (previous != null) {
+                    // The peer restarted and dialed again before we noticed
+                    previous.close();
+                    dropNode(id);
+                }
+                for (ClientSession session : registry.localSessions()) {
+                    Room room = session.room;
+                    if (room != null) {
+                        out.send(userAddedFrame(session.username, room.name, session.joinedAt));
+                    }
+                }
+                if (role == ClusterRole.CORE) {
+                    // A new edge also needs everyone on the other edges
+                    for (RemoteUser user : remoteUsers.values()) {
+                        out.send(userAddedFrame(user.session.username, user.room, user.session.joinedAt));
+                    }
+                }
+            } finally {
+                rosterLock.unlock();
+            }
+            LOG.info("Cluster: linked to {}", id);
+
+            Frame frame;
+            while ((frame = in.readFrame(Protocol.MAX_SERVER_FRAME)) != null && !closed) {
+                handle(link, frame);
+            }
+        } catch (IOException e) {
+            if (!closed && link != null) {
+                LOG.warn("Cluster link to {} failed: {}", link.id, e.getMessage());
+            }
+        } finally {
+            if (expected != null) {
+                dialed.remove(expected);
+            }
+            if (link != null) {
+                linkDown(link);
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    // What the link is known by, or null if it is refused. A node's peers must be configured
+    // (and lower, for accepted links); a core takes any edge, and an edge knows its core by
+    // the address it dials.
+    private String linkId(String hello, String expected) {
+        if (hello == null || hello.equals(self)) {
+            return null;
+        }
+        switch (role) {
+            case CORE:
+                return expected == null ? hello : null;
+            case EDGE:
+                return expected;
+            default:
+                if (expected != null) {
+                    return hello.equals(expected) ? hello : null;
+                }
+                return peers.contains(hello) && hello.compareTo(self) < 0 ? hello : null;
+        }
+    }
+
+    private void linkDown(Link link) {
+        link.close();
+        if (!links.remove(link.id, link)) {
+            return;
+        }
+        if (!closed) {
+            LOG.warn("Cluster: lost {}", link.id);
+        }
+        rosterLock.lock();
+        try {
+            dropNode(link.id);
+        } finally {
+            rosterLock.unlock();
+        }
+    }
+
+    // The node is gone: so are its users and its claims on our names. A core tells its other
+    // edges they left. Caller holds rosterLock.
+    private void dropNode(String node) {
+        for (RemoteUser user : remoteUsers.values()) {
+            if (user.node.equals(node) && removeRemote(user) && role == ClusterRole.CORE) {
+                send(userRemovedFrame(user.session.username));
+            }
+        }
+        claims.values().removeIf(node::equals);
+        for (PendingClaim claim : pending.values()) {
+            if (claim.owner.equals(node)) {
+                claim.granted.complete(false);
+            }
+        }
+    }
+
+    private void handle(Link link, Frame frame) throws IOException {
+        switch (frame.type()) {
+            case CLAIM: {
+                long request = frame.getLong();
+                String name = frame.getString();
+                boolean granted = ownerOf(name).equals(self) && claims.putIfAbsent(name, link.id) == null;
+                link.out.send(new FrameBuilder(GRANT).putLong(request).putByte(granted ? 1 : 0).build());
+                break;
+            }
+            case GRANT: {
+                PendingClaim claim = pending.remove(frame.getLong());
+                if (claim != null) {
+                    claim.granted.complete(frame.getByte() == 1);
+                }
+                break;
+            }
+            case USER_ADDED:
+            case USER_MOVED:
+            case USER_REMOVED:
+                // A core passes the change on to its other edges, in order with the full list
+                // a new edge is sent
+                rosterLock.lock();
+                try {
+                    ByteBuffer change = handleRoster(link, frame);
+                    if (change != null && role == ClusterRole.CORE) {
+                        forward(link, change);
+                    }
+                } finally {
+                    rosterLock.unlock();
+                }
+                break;
+            case CHAT: {
+                String room = frame.getString();
+                String sender = frame.getString();
+                String text = frame.getString();
+                registry.deliverChat(room, sender, text);
+                if (role == ClusterRole.CORE) {
+                    forward(link, chatFrame(room, sender, text));
+                }
+                break;
+            }
+            case NOTICE: {
+                String room = frame.getString();
+                String text = frame.getString();
+                registry.deliverNotice(room.isEmpty() ? null : room, text);
+                if (role == ClusterRole.CORE) {
+                    forward(link, noticeFrame(room, text));
+                }
+                break;
+            }
+            case PRESENCE: {
+                String room = frame.getString();
+                byte kind = frame.getByte();
+                String user = frame.getString();
+                registry.deliverPresence(room, kind, user);
+                if (role == ClusterRole.CORE) {
+                    forward(link, presenceFrame(room, kind, user));
+                }
+                break;
+            }
+            case EVICT: {
+                String name = frame.getString();
+                registry.evict(name, Instant.ofEpochMilli(frame.getLong()));
+                break;
+            }
+            case DIRECT: {
+                String from = frame.getString();
+                String to = frame.getString();
+                String text = frame.getString();
+                // A core routes messages between edges to the target's edge
+                if (role != ClusterRole.CORE || !relayDirect(from, to, text)) {
+                    registry.deliverDirect(from, to, text);
+                }
+                break;
+            }
+            default:
+                LOG.warn("Cluster: unknown frame type {} from {}", frame.type(), link.id);
+                break;
+        }
+    }
+
+    // A user of the link's node joined, moved or left. Returns the change re-encoded for
+    // passing on, or null if it changed nothing.
+    private ByteBuffer handleRoster(Link link, Frame frame) throws IOException {
+        switch (frame.type()) {
+            case USER_ADDED: {
+                String name = frame.getString();
+                String room = frame.getString();
+                Instant joinedAt = Instant.ofEpochMilli(frame.getLong());
+                if (ownerOf(name).equals(self)) {
+                    // Normally claimed already; after a reconnect this restores the claim, unless
+                    // the name went to someone else meanwhile
+                    String holder = claims.putIfAbsent(name, link.id);
+                    if (holder != null && !holder.equals(link.id)) {
+                        evict(link, name, joinedAt, holder);
+                        return null;
+                    }
+                }
+                addRemote(new RemoteUser(link.id, ClientSession.remote(name, joinedAt), room));
+                return userAddedFrame(name, room, joinedAt);
+            }
+            case USER_MOVED: {
+                RemoteUser user = remoteUsers.get(frame.getString());
+                String room = frame.getString();
+                if (user != null && user.node.equals(link.id)) {
+                    String previous = user.room;
+                    remoteByRoomRemove(previous, user.session);
+                    user.room = room;
+                    remoteByRoom.computeIfAbsent(room, key -> ConcurrentHashMap.newKeySet()).add(user.session);
+                    registry.moveRemote(user.session, previous, room);
+                    return movedFrame(user.session.username, room);
+                }
+                return null;
+            }
+            default: {
+                String name = frame.getString();
+                claims.remove(name, link.id);
+                RemoteUser user = remoteUsers.get(name);
+                if (user != null && user.node.equals(link.id) && removeRemote(user)) {
+                    return userRemovedFrame(name);
+                }
+                return null;
+            }
+        }
+    }
+
+    // The link's node has a user by a name someone else holds: the holder keeps it, and the
+    // node disconnects its user (whose USER_REMOVED then changes nothing here)
+    private void evict(Link link, String name, Instant joinedAt, String holder) {
+        LOG.warn("Cluster: {} is already registered, evicting it from {}", name, link.id);
+        link.out.send(new FrameBuilder(EVICT).putString(name).putLong(joinedAt.toEpochMilli()).build());
+        if (holder.equals(self)) {
+            // Peers sent the evicted user in the node's full list lose it again with its
+            // USER_REMOVED; announcing ours again puts it back
+            ClientSession session = registry.localSession(name);
+            Room room = session != null ? session.room : null;
+            if (room != null) {
+                send(userAddedFrame(name, room.name, session.joinedAt));
+            }
+        }
+    }
+
+    // To every link but the one it came in on
+    private void forward(Link from, ByteBuffer frame) {
+        for (Link link : links.values()) {
+            if (link != from) {
+                link.out.send(frame);
+            }
+        }
+    }
+
+    private void addRemote(RemoteUser user) {
+        RemoteUser previous = remoteUsers.put(user.session.username, user);
+        if (previous != null) {
+            remoteByRoomRemove(previous.room, previous.session);
+            registry.removeRemote(previous.session, previous.room);
+        }
+        remoteByRoom.computeIfAbsent(user.room, key -> ConcurrentHashMap.newKeySet()).add(user.session);
+        registry.addRemote(user.session, user.room);
+    }
+
+    // False if already removed
+    private boolean removeRemote(RemoteUser user) {
+        if (!remoteUsers.remove(user.session.username, user)) {
+            return false;
+        }
+        remoteByRoomRemove(user.room, user.session);
+        registry.removeRemote(user.session, user.room);
+        return true;
+    }
+
+    private void remoteByRoomRemove(String room, ClientSession session) {
+        remoteByRoom.computeIfPresent(room, (key, members) -> {
+            members.remove(session);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    boolean hasRemoteUser(String name) {
+        return remoteUsers.containsKey(name);
+    }
+
+    // Users of other nodes in a room, for a room this node opens
+    Collection<ClientSession> remoteMembers(String room) {
+        Set<ClientSession> members = remoteByRoom.get(room);
+        return members != null ? new ArrayList<>(members) : Collections.emptyList();
+    }
+
+    // Claim a name for a local user from the node that owns it: true if granted, false if
+    // someone on any node has it (or its owner cannot be reached or does not answer in time).
+    // Never waits: a name owned elsewhere completes on the link thread that gets the answer.
+    CompletableFuture<Boolean> claim(String name) {
+        String owner = ownerOf(name);
+        if (owner.equals(self)) {
+            return CompletableFuture.completedFuture(claims.putIfAbsent(name, self) == null);
+        }
+        Link link = links.get(owner);
+        if (link == null) {
+            LOG.warn("Cluster: cannot register {}, its owner {} is not linked", name, owner);
+            return CompletableFuture.completedFuture(false);
+        }
+        long request = requests.incrementAndGet();
+        PendingClaim claim = new PendingClaim(owner);
+        pending.put(request, claim);
+        link.out.send(new FrameBuilder(CLAIM).putLong(request).putString(name).build());
+        return claim.granted.orTimeout(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).handle((granted, e) -> {
+            pending.remove(request);
+            if (e == null) {
+                return granted;
+            }
+            // Timed out: the owner may still grant it, so give it back
+            link.out.send(userRemovedFrame(name));
+            LOG.warn("Cluster: no answer from {} on claiming {}", owner, name);
+            return false;
+        });
+    }
+
+    // A local user registered (once claim() granted the name) and entered a room
+    void userAdded(ClientSession session, String room) {
+        rosterLock.lock();
+        try {
+            // Unless already removed again, whose USER_REMOVED went out before this
+            if (registry.isRegistered(session)) {
+                send(userAddedFrame(session.username, room, session.joinedAt));
+            }
+        } finally {
+            rosterLock.unlock();
+        }
+    }
+
+    void userMoved(String name, String room) {
+        sendRoster(movedFrame(name, room));
+    }
+
+    // A local user left: also gives the name back to its owner
+    void userRemoved(String name) {
+        claims.remove(name, self);
+        sendRoster(userRemovedFrame(name));
+    }
+
+    private void sendRoster(ByteBuffer frame) {
+        rosterLock.lock();
+        try {
+            send(frame);
+        } finally {
+            rosterLock.unlock();
+        }
+    }
+
+    private static ByteBuffer userAddedFrame(String name, String room, Instant joinedAt) {
+        return new FrameBuilder(USER_ADDED).putString(name).putString(room).putLong(joinedAt.toEpochMilli()).build();
+    }
+
+    private static ByteBuffer movedFrame(String name, String room) {
+        return new FrameBuilder(USER_MOVED).putString(name).putString(room).build();
+    }
+
+    private static ByteBuffer userRemovedFrame(String name) {
+        return new FrameBuilder(USER_REMOVED).putString(name).build();
+    }
+
+    private static ByteBuffer chatFrame(String room, String sender, String text) {
+        return new FrameBuilder(CHAT).putString(room).putString(sender).putString(text).build();
+    }
+
+    private static ByteBuffer noticeFrame(String room, String text) {
+        return new FrameBuilder(NOTICE).putString(room).putString(text).build();
+    }
+
+    private static ByteBuffer presenceFrame(String room, byte kind, String username) {
+        return new FrameBuilder(PRESENCE).putString(room).putByte(kind).putString(username).build();
+    }
+
+    // A local user's chat line, to every peer once
+    void relayChat(String room, String sender, String text) {
+        send(chatFrame(room, sender, text));
+    }
+
+    // A notice for one room, or every room if room is null
+    void relayNotice(String room, String text) {
+        send(noticeFrame(room != null ? room : "", text));
+    }
+
+    void relayPresence(String room, byte kind, String username) {
+        send(presenceFrame(room, kind, username));
+    }
+
+    // Private message to a user of another node, false if no linked node has them
+    boolean relayDirect(String from, String to, String text) {
+        RemoteUser user = remoteUsers.get(to);
+        Link link = user != null ? links.get(user.node) : null;
+        if (link == null) {
+            return false;
+        }
+        link.out.send(new FrameBuilder(DIRECT).putString(from).putString(to).putString(text).build());
+        return true;
+    }
+
+    // One encoding queued on every link
+    private void send(ByteBuffer frame) {
+        for (Link link : links.values()) {
+            link.out.send(frame);
+        }
+    }
+
+    // Rendezvous hashing: the node scoring highest for the name owns it, so adding or
+    // removing a node from the configuration only moves the names that node wins or won.
+    // In an edge tier the core owns them all.
+    String ownerOf(String name) {
+        if (role == ClusterRole.CORE) {
+            return self;
+        } else if (role == ClusterRole.EDGE) {
+            return peers.get(0);
+        }
+        String owner = self;
+        long best = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long score = mix(node.hashCode() * 0x9E3779B97F4A7C15L + name.hashCode());
+            if (score > best) {
+                best = score;
+                owner = node;
+            }
+        }
+        return owner;
+    }
+
+    // MurmurHash3's 64-bit finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e53ff1ae1L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // "node <id>: n of m peers linked, k remote users" and the like, for Stats
+    String describe() {
+        switch (role) {
+            case CORE:
+                return "core " + self + ": " + links.size() + " edges linked, " + remoteUsers.size() + " users on edges";
+            case EDGE:
+                return "edge " + self + ": " + (links.isEmpty() ? "not linked to core " : "linked to core ")
+                        + peers.get(0) + ", " + remoteUsers.size() + " remote users";
+            default:
+                return "node " + self + ": " + links.size() + " of " + peers.size() + " peers linked, "
+                        + remoteUsers.size() + " remote users";
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Link link : links.values()) {
+            link.close();
+        }
+        writers.shutdownNow();
+    }
+}
@@ -0,0 +1,108 @@
+package minichat.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Where this node listens for the other nodes of a cluster, and where they listen. A node's
+// id is its listen address exactly as written ("127.0.0.1:7001"), so every node must list
+// the others the way they list themselves.
+//
+// An edge tier is the other shape: a core listens for any number of edges, and each edge
+// has one link to the core (its only peer) and a made-up id.
+public final class ClusterConfig {
+    private final ClusterRole role;
+    private final String self;
+    private final List<String> peers;
+
+    public ClusterConfig(String self, List<String> peers) {
+        this(ClusterRole.NODE, self, peers);
+        if (peers.contains(self)) {
+            throw new IllegalArgumentException("A node cannot be its own peer: " + self);
+        }
+    }
+
+    private ClusterConfig(ClusterRole role, String self, List<String> peers) {
+        if (role != ClusterRole.EDGE) {
+            address(self);
+        }
+        for (String peer : peers) {
+            address(peer);
+        }
+        this.role = role;
+        this.self = self;
+        this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+    }
+
+    // The core of an edge tier, taking edges on listen
+    public static ClusterConfig core(String listen) {
+        return new ClusterConfig(ClusterRole.CORE, listen, Collections.emptyList());
+    }
+
+    // An edge linked to the core listening on upstream
+    public static ClusterConfig edge(String upstream) {
+        String id = "edge-" + Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 16);
+        return new ClusterConfig(ClusterRole.EDGE, id, Collections.singletonList(upstream));
+    }
+
+    // Reads -Dminichat.cluster.listen=<host:port> and -Dminichat.cluster.peers=<host:port,...>
+    // for a cluster node, -Dminichat.edge.listen=<host:port> for an edge tier's core, or
+    // -Dminichat.edge.upstream=<host:port> for an edge. Null (no cluster) if none is set.
+    public static ClusterConfig fromSystemProperties() {
+        String listen = property("minichat.cluster.listen");
+        String edgeListen = property("minichat.edge.listen");
+        String upstream = property("minichat.edge.upstream");
+        if ((listen != null ? 1 : 0) + (edgeListen != null ? 1 : 0) + (upstream != null ? 1 : 0) > 1) {
+            throw new IllegalArgumentException(
+                    "Set only one of minichat.cluster.listen, minichat.edge.listen and minichat.edge.upstream");
+        }
+        if (edgeListen != null) {
+            return core(edgeListen);
+        }
+        if (upstream != null) {
+            return edge(upstream);
+        }
+        if (listen == null) {
+            return null;
+        }
+        List<String> peers = new ArrayList<>();
+        for (String peer : System.getProperty("minichat.cluster.peers", "").split(",")) {
+            if (!peer.trim().isEmpty()) {
+                peers.add(peer.trim());
+            }
+        }
+        return new ClusterConfig(listen, peers);
+    }
+
+    private static String property(String name) {
+        String value = System.getProperty(name);
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    public ClusterRole getRole() {
+        return role;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    // "host:port" as a socket address
+    static InetSocketAddress address(String id) {
+        int colon = id.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Cluster address must be host:port: " + id);
+        }
+        try {
+            return new InetSocketAddress(id.substring(0, colon), Integer.parseInt(id.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cluster address: " + id);
+        }
+    }
+}
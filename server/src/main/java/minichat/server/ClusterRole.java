@@ -0,0 +1,11 @@
+package minichat.server;
+
+// What a server is to the other servers it links to
+public enum ClusterRole {
+    // One of a full mesh of equal nodes, each serving its own clients
+    NODE,
+    // Hub of an edge tier: takes any number of edges and relays between them
+    CORE,
+    // Serves its clients behind a single link to a core
+    EDGE
+}
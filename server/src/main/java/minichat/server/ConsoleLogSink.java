@@ -0,0 +1,49 @@
+package minichat.server;
+
+import java.io.PrintStream;
+
+// "HH:mm:ss message" lines, the server console output from before the event log.
+// Warnings and errors go to stderr. Each batch is one print per stream.
+final class ConsoleLogSink implements LogSink {
+    private final PrintStream out;
+    private final PrintStream err;
+    private final StringBuilder outBatch = new StringBuilder();
+    private final StringBuilder errBatch = new StringBuilder();
+    // Events arrive in bursts within the same second, and may trail the clock a little
+    private long second = Long.MIN_VALUE;
+    private String time;
+
+    ConsoleLogSink(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    @Override
+    public void append(long timeMillis, LogLevel level, CharSequence message) {
+        if (timeMillis / 1000 != second) {
+            second = timeMillis / 1000;
+            time = WallClock.time(timeMillis);
+        }
+        StringBuilder batch = level.compareTo(LogLevel.WARN) >= 0 ? errBatch : outBatch;
+        batch.append(time).append(' ').append(message).append(System.lineSeparator());
+    }
+
+    @Override
+    public void flush() {
+        if (outBatch.length() > 0) {
+            out.print(outBatch);
+            out.flush();
+            outBatch.setLength(0);
+        }
+        if (errBatch.length() > 0) {
+            err.print(errBatch);
+            err.flush();
+            errBatch.setLength(0);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
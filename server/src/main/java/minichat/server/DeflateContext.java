@@ -0,0 +1,93 @@
+package minichat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import minichat.protocol.FrameBuilder;
+import minichat.protocol.Protocol;
+
+// One raw deflate stream, sync-flushed after every frame so each DEFLATED frame inflates to
+// whole frames given the ones before it. Callers hold lock() from compress() until the result
+// is queued, so every reader receives the stream's blocks in order.
+final class DeflateContext {
+    // -Dminichat.compression.level, 1 (fastest) to 9 (smallest)
+    static final int LEVEL = Integer.getInteger("minichat.compression.level", 6);
+    // Stream ids are never reused, so a reader can tell a fresh stream from one it is following
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Created on first use, zlib keeps a few hundred KB of native state per stream
+    private Deflater deflater;
+    private int id = ids.incrementAndGet();
+    // Some reader has a block of this stream
+    private boolean started;
+    private byte[] buffer = new byte[512];
+    private boolean closed;
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    // Start a new stream, for readers that missed earlier blocks of this one. Returns the
+    // DEFLATE_END of the stream it replaces, for the readers following it (null if none are).
+    ByteBuffer reset() {
+        ByteBuffer ended = endFrame();
+        if (deflater != null) {
+            deflater.reset();
+        }
+        id = ids.incrementAndGet();
+        started = false;
+        return ended;
+    }
+
+    // DEFLATE_END for this stream, null if no block of it went out yet
+    ByteBuffer endFrame() {
+        return started ? new FrameBuilder(Protocol.DEFLATE_END, 4).putInt(id).build() : null;
+    }
+
+    // DEFLATED frame carrying the given frame, or null once closed. The input is not modified.
+    ByteBuffer compress(ByteBuffer frame) {
+        if (closed) {
+            return null;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        deflater.setInput(frame.duplicate());
+        started = true;
+
+        // A sync flush is complete once deflate() leaves part of the buffer unused
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+            if (length < buffer.length) {
+                break;
+            }
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        return new FrameBuilder(Protocol.DEFLATED, 4 + length)
+                .putInt(id)
+                .putBytes(buffer, 0, length)
+                .build();
+    }
+
+    // Free the native stream, later compress() calls return null
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
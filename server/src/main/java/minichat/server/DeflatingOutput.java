@@ -0,0 +1,64 @@
+package minichat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Output of a binary session that negotiated compression. Everything sent here goes through
+// the session's own deflate stream; room broadcasts compressed once in the room's shared
+// stream bypass it through sendCompressed(). Each block depends on the ones before it, so
+// the connection's queue is switched to disconnect rather than drop when it overflows.
+// That stays so for the connection's life, also if the registration is refused.
+public final class DeflatingOutput implements SessionOutput {
+    private final SessionOutput out;
+    private final DeflateContext context = new DeflateContext();
+
+    public DeflatingOutput(SessionOutput out) {
+        this.out = out;
+        out.disconnectOnOverflow();
+    }
+
+    @Override
+    public void println(String line) {
+        print(line + "\n");
+    }
+
+    @Override
+    public void print(String text) {
+        send(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Compress and queue under the stream's lock, so blocks reach the socket in stream order
+    @Override
+    public void send(ByteBuffer data) {
+        context.lock();
+        try {
+            ByteBuffer compressed = context.compress(data);
+            if (compressed != null) {
+                out.send(compressed);
+            }
+        } finally {
+            context.unlock();
+        }
+    }
+
+    // Queue a DEFLATED frame from a shared stream (or its DEFLATE_END) as-is
+    void sendCompressed(ByteBuffer compressed) {
+        out.send(compressed);
+    }
+
+    @Override
+    public boolean checkError() {
+        return out.checkError();
+    }
+
+    // Free the compressor but keep the connection, for a registration that was refused
+    void release() {
+        context.close();
+    }
+
+    @Override
+    public void close() {
+        context.close();
+        out.close();
+    }
+}
@@ -0,0 +1,31 @@
+package minichat.server;
+
+import java.io.IOException;
+
+// Starts an edge server: clients connect to it like to any server, it sends what they say to
+// the core over one link and fans what comes back from the core out to them. The core's
+// work then grows with the number of edges rather than the number of users.
+public class Edge {
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java minichat.server.Edge <port> <core host:port> [threads|virtual|nio]");
+            System.exit(1);
+        }
+
+        try {
+            int port = Integer.parseInt(args[0]);
+            IoMode mode = args.length == 3 ? IoMode.parse(args[2]) : IoMode.NIO;
+            Server server = new Server(port, mode, OutboundConfig.fromSystemProperties(), ClusterConfig.edge(args[1]));
+            server.start();
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid port number: " + args[0]);
+            System.exit(1);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Failed to start edge: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
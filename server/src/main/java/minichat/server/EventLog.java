@@ -0,0 +1,322 @@
+package minichat.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Server event log. Callers only claim a slot in a bounded ring and store the event's time,
+// format and arguments, no lock and no I/O. A single writer thread formats what has piled up
+// and hands it to the sink as one batch (one console print or file write per batch).
+//
+// Messages use "{}" placeholders, filled in on the writer thread with String.valueOf(arg),
+// so arguments must not change after they are logged (strings and numbers are fine).
+// When the ring is full, callers wait for the writer, or with lossy=true drop the event.
+public final class EventLog {
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final int MAX_BATCH = 1024;
+    // The writer is woken on the first event after it goes idle, this only bounds a missed wakeup
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static volatile EventLog instance;
+
+    private final LogLevel level;
+    private final boolean lossy;
+    private final LogSink sink;
+
+    // Multi-producer ring: slot i is free for position p when sequences[i] == p
+    // and readable by the writer when sequences[i] == p + 1
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] times;
+    private final LogLevel[] levels;
+    private final String[] formats;
+    private final Object[] firstArgs;
+    private final Object[] secondArgs;
+    // Next position to claim
+    private final AtomicLong tail = new AtomicLong();
+    // Every position before this one has been written to the sink
+    private volatile long head;
+
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean writerIdle;
+    private volatile boolean closed;
+
+    EventLog(LogLevel level, int capacity, boolean lossy, LogSink sink) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Log buffer capacity must be at least 2: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.level = level;
+        this.lossy = lossy;
+        this.sink = sink;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.times = new long[size];
+        this.levels = new LogLevel[size];
+        this.formats = new String[size];
+        this.firstArgs = new Object[size];
+        this.secondArgs = new Object[size];
+
+        writer = new Thread(this::drain, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // "HH:mm:ss message" lines on stdout, warnings and errors on stderr
+    public static EventLog console(LogLevel level, int capacity, boolean lossy) {
+        return new EventLog(level, capacity, lossy, new ConsoleLogSink(System.out, System.err));
+    }
+
+    // Timestamped lines with levels in a file that rolls over at maxBytes, keeping that many old ones
+    public static EventLog rollingFile(LogLevel level, int capacity, boolean lossy, Path file, long maxBytes, int keep)
+            throws IOException {
+        return new EventLog(level, capacity, lossy, new RollingFileLogSink(file, maxBytes, keep));
+    }
+
+    // The server's log, configured from system properties on first use:
+    //   -Dminichat.log.level=debug|info|warn|error|off   (default info)
+    //   -Dminichat.log.file=<path>                        (default: the console)
+    //   -Dminichat.log.file.size=<bytes>                  (roll over size, default 10 MB)
+    //   -Dminichat.log.file.count=<n>                     (rolled files kept, default 5)
+    //   -Dminichat.log.buffer=<events>                    (ring capacity, default 8192)
+    //   -Dminichat.log.lossy=true                         (drop events instead of waiting when full)
+    public static EventLog get() {
+        EventLog log = instance;
+        if (log == null) {
+            synchronized (EventLog.class) {
+                if (instance == null) {
+                    instance = fromSystemProperties();
+                }
+                log = instance;
+            }
+        }
+        return log;
+    }
+
+    private static EventLog fromSystemProperties() {
+        LogSink sink = new ConsoleLogSink(System.out, System.err);
+        LogLevel level = LogLevel.INFO;
+        try {
+            level = LogLevel.parse(System.getProperty("minichat.log.level", LogLevel.INFO.name()));
+            String file = System.getProperty("minichat.log.file");
+            if (file != null) {
+                sink = new RollingFileLogSink(Paths.get(file),
+                        Long.getLong("minichat.log.file.size", 10L * 1024 * 1024),
+                        Integer.getInteger("minichat.log.file.count", 5));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Logging to the console: " + e.getMessage());
+        }
+        return new EventLog(level, Integer.getInteger("minichat.log.buffer", DEFAULT_CAPACITY),
+                Boolean.getBoolean("minichat.log.lossy"), sink);
+    }
+
+    public boolean isEnabled(LogLevel level) {
+        return level != LogLevel.OFF && level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String message) {
+        log(LogLevel.DEBUG, message, null, null);
+    }
+
+    public void debug(String format, Object arg) {
+        log(LogLevel.DEBUG, format, arg, null);
+    }
+
+    public void debug(String format, Object first, Object second) {
+        log(LogLevel.DEBUG, format, first, second);
+    }
+
+    public void info(String message) {
+        log(LogLevel.INFO, message, null, null);
+    }
+
+    public void info(String format, Object arg) {
+        log(LogLevel.INFO, format, arg, null);
+    }
+
+    public void info(String format, Object first, Object second) {
+        log(LogLevel.INFO, format, first, second);
+    }
+
+    public void warn(String message) {
+        log(LogLevel.WARN, message, null, null);
+    }
+
+    public void warn(String format, Object arg) {
+        log(LogLevel.WARN, format, arg, null);
+    }
+
+    public void warn(String format, Object first, Object second) {
+        log(LogLevel.WARN, format, first, second);
+    }
+
+    public void error(String message) {
+        log(LogLevel.ERROR, message, null, null);
+    }
+
+    public void error(String format, Object arg) {
+        log(LogLevel.ERROR, format, arg, null);
+    }
+
+    public void error(String format, Object first, Object second) {
+        log(LogLevel.ERROR, format, first, second);
+    }
+
+    // Any thread: queue an event, never blocks unless the ring is full and the log is not lossy
+    public void log(LogLevel level, String format, Object first, Object second) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+
+        long position;
+        int attempts = 0;
+        while (true) {
+            if (closed) {
+                dropped.increment();
+                return;
+            }
+            position = tail.get();
+            long sequence = sequences.get(index(position));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // Full: the writer has not freed this slot since the last lap
+                if (lossy) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                if (++attempts < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(50_000);
+                }
+            }
+            // Otherwise another caller claimed this position first, try the next one
+        }
+
+        int i = index(position);
+        times[i] = time;
+        levels[i] = level;
+        formats[i] = format;
+        firstArgs[i] = first;
+        secondArgs[i] = second;
+        // Publishes the fields above to the writer
+        sequences.lazySet(i, position + 1);
+
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private int index(long position) {
+        return (int) position & mask;
+    }
+
+    // Writer thread: format and write batches until closed and drained
+    private void drain() {
+        StringBuilder message = new StringBuilder(128);
+        long next = head;
+        while (true) {
+            int count = 0;
+            while (count < MAX_BATCH && sequences.get(index(next)) == next + 1) {
+                int i = index(next);
+                message.setLength(0);
+                try {
+                    format(message, formats[i], firstArgs[i], secondArgs[i]);
+                    sink.append(times[i], levels[i], message);
+                } catch (RuntimeException e) {
+                    // A broken toString() loses its own event, not the log
+                }
+                formats[i] = null;
+                firstArgs[i] = null;
+                secondArgs[i] = null;
+                sequences.lazySet(i, next + mask + 1);
+                next++;
+                count++;
+            }
+
+            if (count > 0) {
+                try {
+                    sink.flush();
+                } catch (IOException e) {
+                    System.err.println("Event log write failed: " + e.getMessage());
+                }
+                head = next;
+                continue;
+            }
+
+            if (closed) {
+                break;
+            }
+            writerIdle = true;
+            // Recheck after announcing, an event published before that would not unpark us
+            if (sequences.get(index(next)) != next + 1 && !closed) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            writerIdle = false;
+        }
+
+        try {
+            sink.close();
+        } catch (IOException e) {
+            System.err.println("Event log close failed: " + e.getMessage());
+        }
+    }
+
+    private static void format(StringBuilder sb, String format, Object first, Object second) {
+        int start = 0;
+        int argument = 0;
+        int placeholder;
+        while (argument < 2 && (placeholder = format.indexOf("{}", start)) >= 0) {
+            sb.append(format, start, placeholder).append(argument == 0 ? first : second);
+            start = placeholder + 2;
+            argument++;
+        }
+        sb.append(format, start, format.length());
+    }
+
+    // Wait (up to a second) until everything logged before this call has been written
+    public void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        while (head < target && writer.isAlive() && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    // Write what is queued and stop the writer, later events are dropped
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.NANOSECONDS.toMillis(FLUSH_TIMEOUT_NANOS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Events discarded because the ring was full (lossy mode) or the log closed
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public LogLevel getLevel() {
+        return level;
+    }
+}
@@ -0,0 +1,225 @@
+package minichat.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Single selector thread serving its share of the NIO connections
+class EventLoop implements Runnable {
+    private static final EventLog LOG = EventLog.get();
+    // Limits on one gathering write
+    static final int MAX_GATHER = 64;
+    static final long MAX_GATHER_BYTES = 256 * 1024;
+
+    private final Selector selector;
+    private final SessionRegistry registry;
+    private final OutboundConfig outboundConfig;
+    private final ServerMetrics metrics;
+    private final Thread thread;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> flushes = new ConcurrentLinkedQueue<>();
+    // Work other threads hand back to the loop, such as finishing a registration
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Connections waiting out their flush delay. The delay is the same for all of them,
+    // so the queue is (close enough to) ordered by deadline.
+    private final Queue<NioConnection> delayedFlushes = new ConcurrentLinkedQueue<>();
+    // Set while the loop blocks in select() with no delayed flush to wake it
+    private final AtomicBoolean sleeping = new AtomicBoolean();
+    // Shared by every connection on this loop, reads are dispatched before the next one
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+    // Shared by every connection on this loop for gathering writes, emptied after each one
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+    private volatile boolean running = true;
+
+    EventLoop(String name, SessionRegistry registry, OutboundConfig outboundConfig, ServerMetrics metrics)
+            throws IOException {
+        this.selector = Selector.open();
+        this.registry = registry;
+        this.outboundConfig = outboundConfig;
+        this.metrics = metrics;
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Any thread: hand over a freshly accepted channel
+    void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+    }
+
+    // Any thread: ask for a connection's outbound queue to be written
+    void requestFlush(NioConnection connection) {
+        flushes.add(connection);
+        // Waking the selector is a system call, and pointless from the loop's own thread
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    // Any thread: write a connection's outbound queue once its flush deadline has passed
+    void requestDelayedFlush(NioConnection connection) {
+        delayedFlushes.add(connection);
+        // Otherwise the loop is busy or already set to wake by an earlier deadline
+        if (sleeping.compareAndSet(true, false)) {
+            selector.wakeup();
+        }
+    }
+
+    // Any thread: run a task on the loop's thread
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long wait = processDelayedFlushes();
+                if (wait < 0) {
+                    sleeping.set(true);
+                    // Recheck after announcing, a delayed flush queued before that would not wake us
+                    if (delayedFlushes.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    sleeping.set(false);
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999_999)));
+                }
+                processRegistrations();
+                processTasks();
+                processFlushes();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (RuntimeException e) {
+                        failed(connection, e);
+                    }
+                }
+                // Flushes requested while dispatching reads did not wake the selector
+                processFlushes();
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    LOG.error("Event loop error: {}", e.getMessage());
+                }
+            }
+        }
+        closeConnections();
+    }
+
+    private void processRegistrations() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, outboundConfig, metrics);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.open(key, registry);
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Error registering connection: {}", e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void processTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Event loop task failed: {}", e);
+            }
+        }
+    }
+
+    private void processFlushes() {
+        NioConnection connection;
+        while ((connection = flushes.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (RuntimeException e) {
+                failed(connection, e);
+            }
+        }
+    }
+
+    // A bug in one connection's handling ends that connection, not the loop with every
+    // connection on it
+    void failed(NioConnection connection, RuntimeException e) {
+        LOG.error("Dropping a connection after an unexpected error: {}", e);
+        // A write may have stopped with the shared gather array still filled
+        Arrays.fill(gatherBuffers, null);
+        try {
+            connection.disconnect();
+        } catch (RuntimeException again) {
+            // Its cleanup failed as well, at least close the channel
+            connection.close();
+        }
+    }
+
+    // Flush the connections whose deadline has passed, returns nanoseconds until the next one (-1 if none)
+    private long processDelayedFlushes() {
+        long now = System.nanoTime();
+        NioConnection connection;
+        while ((connection = delayedFlushes.peek()) != null) {
+            long remaining = connection.getFlushDeadline() - now;
+            if (remaining > 0) {
+                return remaining;
+            }
+            delayedFlushes.poll();
+            try {
+                connection.onFlushDelay();
+            } catch (RuntimeException e) {
+                failed(connection, e);
+            }
+        }
+        return -1;
+    }
+
+    private void closeConnections() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            // Ignore
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,32 @@
+package minichat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// JFR: one room broadcast queued on every member
+@Name("minichat.Fanout")
+@Label("Fan-out")
+@Description("One message queued on every member of a room")
+@Category("MiniChat")
+@Threshold("5 ms")
+@StackTrace(false)
+final class FanoutEvent extends jdk.jfr.Event {
+    @Label("Room")
+    String room;
+
+    @Label("Recipients")
+    int recipients;
+
+    @Label("Failed")
+    @Description("Recipients whose write failed")
+    int failed;
+
+    @Label("Size")
+    @DataAmount
+    int bytes;
+}
@@ -0,0 +1,27 @@
+package minichat.server;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Wakes blocking-mode outputs whose flush delay has run out, and sends presence digests.
+// One daemon thread for the whole server, its tasks only hand work over or queue bytes.
+final class FlushTimer {
+    private FlushTimer() {
+    }
+
+    private static final class Holder {
+        static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "flush-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            TIMER.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    static void schedule(Runnable task, long delayNanos) {
+        Holder.TIMER.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
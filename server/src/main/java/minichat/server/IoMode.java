@@ -0,0 +1,20 @@
+package minichat.server;
+
+// How the server drives client connections
+public enum IoMode {
+    // One platform thread per connection, blocking reads/writes
+    THREADS,
+    // One virtual thread per connection, blocking reads/writes (Java 21+)
+    VIRTUAL,
+    // A small fixed set of selector event loops, non-blocking channels
+    NIO;
+
+    public static IoMode parse(String name) {
+        for (IoMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown I/O mode: " + name);
+    }
+}
@@ -0,0 +1,24 @@
+package minichat.server;
+
+// Severity of a server event, events below the configured level are discarded by the caller
+public enum LogLevel {
+    // Protocol details, off by default
+    DEBUG,
+    // Users arriving, chatting and leaving
+    INFO,
+    // A client misbehaved or had to be dropped
+    WARN,
+    // Something failed on the server side
+    ERROR,
+    // Only usable as a threshold: log nothing
+    OFF;
+
+    public static LogLevel parse(String name) {
+        for (LogLevel level : values()) {
+            if (level.name().equalsIgnoreCase(name)) {
+                return level;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+}
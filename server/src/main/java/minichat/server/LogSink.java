@@ -0,0 +1,14 @@
+package minichat.server;
+
+import java.io.IOException;
+
+// Destination of the event log. Only ever called from the log's writer thread:
+// a batch of append() calls followed by one flush().
+interface LogSink {
+    void append(long timeMillis, LogLevel level, CharSequence message);
+
+    // Write out everything appended since the last flush
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,390 @@
+package minichat.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Append-only journal of room broadcasts in fixed-size memory-mapped segment files.
+// An append is a copy into the mapped segment under a short lock, no system call; a commit
+// thread forces what was written since its last pass to disk every commitMillis, so one
+// msync covers every message of that interval (a crash loses at most that interval).
+//
+// Each record keeps the message in both wire formats, and the last replayCount records of
+// every room are indexed, so a client entering a room gets views of the mapped bytes queued
+// on its output as-is, without copying them onto the heap.
+//
+// Record: i32 body length, i32 CRC32C of the body, then the body:
+// room (i32 length + UTF-8), text line (i32 length + bytes), binary frame (i32 length + bytes).
+// A zero length marks the end of a segment's records.
+final class MessageJournal implements Closeable {
+    private static final EventLog LOG = EventLog.get();
+    private static final int HEADER_BYTES = 8;
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final String SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int keepSegments;
+    private final int replayCount;
+    private final long commitNanos;
+
+    // Held while appending and while a joining client is handed the room's recent records
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private Segment current;
+    private int position;
+    // Start of the bytes not yet forced to disk in the current segment
+    private int committed;
+    private final Map<String, RoomIndex> index = new HashMap<>();
+
+    private final Thread committer;
+    private volatile boolean closed;
+
+    // A mapped segment file, its mapping stays valid while records in it are indexed
+    private static final class Segment {
+        final long number;
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        Segment(long number, Path path, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    // Where one record's two encodings sit in its segment
+    private static final class Record {
+        final Segment segment;
+        final int textOffset;
+        final int textLength;
+        final int frameOffset;
+        final int frameLength;
+
+        Record(Segment segment, int textOffset, int textLength, int frameOffset, int frameLength) {
+            this.segment = segment;
+            this.textOffset = textOffset;
+            this.textLength = textLength;
+            this.frameOffset = frameOffset;
+            this.frameLength = frameLength;
+        }
+
+        ByteBuffer view(boolean binary) {
+            ByteBuffer view = segment.buffer.duplicate();
+            int offset = binary ? frameOffset : textOffset;
+            view.position(offset).limit(offset + (binary ? frameLength : textLength));
+            return view.slice();
+        }
+    }
+
+    // Ring of a room's most recent records
+    private static final class RoomIndex {
+        final Record[] records;
+        int next;
+        int count;
+
+        RoomIndex(int capacity) {
+            records = new Record[capacity];
+        }
+
+        void add(Record record) {
+            records[next] = record;
+            next = (next + 1) % records.length;
+            count = Math.min(count + 1, records.length);
+        }
+    }
+
+    MessageJournal(Path directory, int segmentSize, int keepSegments, int replayCount, long commitMillis)
+            throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE || keepSegments < 1 || replayCount < 0 || commitMillis < 1) {
+            throw new IllegalArgumentException("Journal needs segments of at least 1 MB, at least one kept, "
+                    + "a replay count of 0 or more and a commit interval of 1 ms or more");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.keepSegments = keepSegments;
+        this.replayCount = replayCount;
+        this.commitNanos = TimeUnit.MILLISECONDS.toNanos(commitMillis);
+        Files.createDirectories(directory);
+        recover();
+
+        committer = new Thread(this::commitLoop, "journal-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    // Journal configured by system properties, or null when -Dminichat.journal.dir is not set:
+    //   -Dminichat.journal.dir=<directory>
+    //   -Dminichat.journal.segment.size=<bytes>   (per segment file, default 16 MB)
+    //   -Dminichat.journal.segments=<n>           (segment files kept, default 8)
+    //   -Dminichat.journal.replay=<n>             (messages replayed when entering a room, default 20)
+    //   -Dminichat.journal.commit.ms=<ms>         (group commit interval, default 10)
+    static MessageJournal fromSystemProperties() throws IOException {
+        String dir = System.getProperty("minichat.journal.dir");
+        if (dir == null) {
+            return null;
+        }
+        return new MessageJournal(Paths.get(dir),
+                Integer.getInteger("minichat.journal.segment.size", 16 * 1024 * 1024),
+                Integer.getInteger("minichat.journal.segments", 8),
+                Integer.getInteger("minichat.journal.replay", 20),
+                Integer.getInteger("minichat.journal.commit.ms", 10));
+    }
+
+    // Map the existing segments, index their records and continue after the last valid one
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(Comparator.comparing(Path::toString));
+
+        int records = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long number;
+            try {
+                number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            current = map(number, file);
+            segments.add(current);
+            position = 0;
+            int length;
+            while ((length = validRecordAt(current, position)) > 0) {
+                indexRecord(current, position);
+                position += HEADER_BYTES + length;
+                records++;
+            }
+        }
+
+        if (current == null) {
+            roll();
+        } else {
+            // Clear what is left of a record torn by a crash, new records must not end in its bytes
+            MappedByteBuffer buffer = current.buffer;
+            int end = buffer.capacity();
+            while (end > position && buffer.get(end - 1) == 0) {
+                end--;
+            }
+            if (end > position) {
+                for (int i = position; i < end; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.force(position, end - position);
+            }
+            committed = position;
+            trimSegments();
+        }
+        if (records > 0) {
+            LOG.info("Journal: {} messages recovered from {}", records, directory);
+        }
+    }
+
+    // Body length of a complete record at offset, 0 if there is none
+    private static int validRecordAt(Segment segment, int offset) {
+        MappedByteBuffer buffer = segment.buffer;
+        if (offset + HEADER_BYTES > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > buffer.capacity() - offset - HEADER_BYTES) {
+            return 0;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length);
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? length : 0;
+    }
+
+    private void indexRecord(Segment segment, int offset) {
+        if (replayCount == 0) {
+            return;
+        }
+        ByteBuffer buffer = segment.buffer;
+        int at = offset + HEADER_BYTES;
+        int roomLength = buffer.getInt(at);
+        byte[] room = new byte[roomLength];
+        buffer.get(at + 4, room);
+        at += 4 + roomLength;
+        int textLength = buffer.getInt(at);
+        int frameOffset = at + 4 + textLength;
+        Record record = new Record(segment, at + 4, textLength, frameOffset + 4, buffer.getInt(frameOffset));
+        index.computeIfAbsent(new String(room, StandardCharsets.UTF_8), name -> new RoomIndex(replayCount))
+                .add(record);
+    }
+
+    private Segment map(long number, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping outlives the channel
+            return new Segment(number, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    // Caller holds the lock (or is the constructor): force the current segment, start the next
+    private void roll() throws IOException {
+        if (current != null && position > committed) {
+            current.buffer.force(committed, position - committed);
+        }
+        long number = current == null ? 1 : current.number + 1;
+        current = map(number, directory.resolve(String.format("%020d", number) + SUFFIX));
+        segments.add(current);
+        position = 0;
+        committed = 0;
+        trimSegments();
+    }
+
+    // Delete the oldest files beyond the limit. Records still indexed in them stay readable
+    // through the mapping until they are replaced (where the OS allows deleting mapped files).
+    private void trimSegments() {
+        while (segments.size() > keepSegments) {
+            Segment oldest = segments.poll();
+            try {
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                LOG.warn("Could not delete journal segment {}", oldest.path);
+            }
+        }
+    }
+
+    // Record a room broadcast. Called by the broadcasting thread, before the message is queued.
+    void append(String room, OutboundMessage message) {
+        ByteBuffer text = message.encoded(false);
+        ByteBuffer frame = message.encoded(true);
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        int length = 12 + roomBytes.length + text.remaining() + frame.remaining();
+        if (HEADER_BYTES + length + 4 > segmentSize) {
+            LOG.warn("Message too large for the journal ({} bytes)", length);
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            // Keep room for the zero length that ends the segment
+            if (position + HEADER_BYTES + length + 4 > segmentSize) {
+                roll();
+            }
+            ByteBuffer out = current.buffer.duplicate();
+            int start = position;
+            out.position(start + HEADER_BYTES);
+            out.putInt(roomBytes.length).put(roomBytes);
+            int textOffset = out.position() + 4;
+            out.putInt(text.remaining()).put(text.duplicate());
+            int frameOffset = out.position() + 4;
+            out.putInt(frame.remaining()).put(frame.duplicate());
+
+            ByteBuffer body = current.buffer.duplicate();
+            body.position(start + HEADER_BYTES).limit(start + HEADER_BYTES + length);
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            current.buffer.putInt(start + 4, (int) crc.getValue());
+            // Length last: a record is only valid once complete
+            current.buffer.putInt(start, length);
+            position = start + HEADER_BYTES + length;
+
+            if (replayCount > 0) {
+                index.computeIfAbsent(room, name -> new RoomIndex(replayCount)).add(
+                        new Record(current, textOffset, text.remaining(), frameOffset, frame.remaining()));
+            }
+        } catch (IOException e) {
+            LOG.error("Journal write failed: {}", e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Appends wait while a client is being handed a room's history, so it sees every
+    // message exactly once: in the replay or live after it
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    // The room's most recent messages, oldest first, as views of the mapped segments.
+    // Caller holds lock(). The views must not be modified.
+    List<ByteBuffer> recent(String room, boolean binary) {
+        RoomIndex roomIndex = index.get(room);
+        if (roomIndex == null) {
+            return Collections.emptyList();
+        }
+        List<ByteBuffer> views = new ArrayList<>(roomIndex.count);
+        int start = roomIndex.next - roomIndex.count + roomIndex.records.length;
+        for (int i = 0; i < roomIndex.count; i++) {
+            views.add(roomIndex.records[(start + i) % roomIndex.records.length].view(binary));
+        }
+        return views;
+    }
+
+    // The room was dropped, its history is no longer needed in memory
+    void forget(String room) {
+        lock.lock();
+        try {
+            index.remove(room);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Commit thread: force everything appended since the last pass, one msync per interval
+    private void commitLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(this, commitNanos);
+            commit();
+        }
+    }
+
+    private void commit() {
+        MappedByteBuffer buffer;
+        int from;
+        int to;
+        lock.lock();
+        try {
+            if (position == committed) {
+                return;
+            }
+            buffer = current.buffer;
+            from = committed;
+            to = position;
+            committed = position;
+        } finally {
+            lock.unlock();
+        }
+        // Outside the lock, appends carry on past the range being forced
+        buffer.force(from, to - from);
+    }
+
+    int getReplayCount() {
+        return replayCount;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(committer);
+        try {
+            committer.join(TimeUnit.NANOSECONDS.toMillis(commitNanos) + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+    }
+}
@@ -0,0 +1,23 @@
+package minichat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// JFR: telling a text line's command from chat and matching the "username = " pattern
+@Name("minichat.MessageParse")
+@Label("Message Parse")
+@Description("Command check and username pattern match of one text line")
+@Category("MiniChat")
+@Threshold("1 ms")
+@StackTrace(false)
+final class MessageParseEvent extends jdk.jfr.Event {
+    @Label("User")
+    String user;
+
+    @Label("Command")
+    boolean command;
+}
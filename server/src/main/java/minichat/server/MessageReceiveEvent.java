@@ -0,0 +1,28 @@
+package minichat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// JFR: one line or frame from a client handled from start to end, parsing, logging and the
+// fan-out it causes included (those have their own events, nested in this one's time span)
+@Name("minichat.MessageReceive")
+@Label("Message Receive")
+@Description("Handling of one line or frame received from a client")
+@Category("MiniChat")
+@Threshold("10 ms")
+@StackTrace(false)
+final class MessageReceiveEvent extends jdk.jfr.Event {
+    @Label("User")
+    String user;
+
+    @Label("Binary")
+    boolean binary;
+
+    @Label("Length")
+    @Description("Characters of a text line, payload bytes of a frame")
+    int length;
+}
@@ -0,0 +1,348 @@
+package minichat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import minichat.protocol.Frame;
+import minichat.protocol.Protocol;
+import minichat.protocol.WireReader;
+
+// Non-blocking client connection, read and flushed only by its owning EventLoop
+class NioConnection implements SessionOutput {
+    private static final EventLog LOG = EventLog.get();
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final OutboundQueue outbound;
+    private final ServerMetrics metrics;
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // When a delayed flush is due, set before the connection is queued for it
+    private volatile long flushDeadline;
+    // Messages left over from a write that filled the socket buffer, the first one maybe partly written
+    private ByteBuffer[] unfinished;
+    private volatile boolean overflowed;
+    private SelectionKey key;
+    private ClientHandler handler;
+    private boolean disconnected;
+    private volatile boolean closed;
+    private volatile boolean error;
+
+    // Bytes of the line (or frame) currently being received
+    private byte[] line = new byte[128];
+    private int lineLength;
+    // Payload length of the frame being received, -1 until its header is complete
+    private int frameLength = -1;
+    // Set while a registration waits on another cluster node: nothing more is read or dispatched
+    private boolean paused;
+    // What was read but not dispatched before the pause, null if nothing
+    private ByteBuffer held;
+
+    NioConnection(SocketChannel channel, EventLoop loop, OutboundConfig outboundConfig, ServerMetrics metrics) {
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = new OutboundQueue(outboundConfig, metrics);
+        this.metrics = metrics;
+    }
+
+    // Loop thread: attach the protocol handler once the channel is registered
+    void open(SelectionKey key, SessionRegistry registry) {
+        this.key = key;
+        handler = new ClientHandler(this, registry, metrics, isLoopback());
+        handler.greet();
+    }
+
+    // Loop thread: read whatever is available and dispatch complete lines or frames
+    void onReadable(ByteBuffer buffer) {
+        int count;
+        try {
+            buffer.clear();
+            count = channel.read(buffer);
+        } catch (IOException e) {
+            disconnect();
+            return;
+        }
+        if (count < 0) {
+            disconnect();
+            return;
+        }
+        metrics.received(count);
+
+        buffer.flip();
+        dispatch(buffer);
+    }
+
+    // Loop thread: dispatch complete lines or frames, holding on to the rest if the handler pauses
+    private void dispatch(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (paused) {
+                hold(buffer);
+                return;
+            }
+            if (handler.isBinary()) {
+                // Negotiated mid-buffer: the rest of the bytes are frames
+                if (!readFrames(buffer)) {
+                    disconnect();
+                }
+                return;
+            }
+            byte b = buffer.get();
+            if (b == '\n') {
+                int end = lineLength;
+                if (end > 0 && line[end - 1] == '\r') {
+                    end--;
+                }
+                String text = new String(line, 0, end, StandardCharsets.UTF_8);
+                lineLength = 0;
+                if (!handler.handleLine(text)) {
+                    disconnect();
+                    return;
+                }
+            } else {
+                if (lineLength == line.length) {
+                    if (lineLength >= WireReader.MAX_LINE_BYTES) {
+                        LOG.warn("Line too long, dropping connection");
+                        disconnect();
+                        return;
+                    }
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, WireReader.MAX_LINE_BYTES));
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    // Loop thread: assemble frames in the line buffer and dispatch complete ones,
+    // returns false if the connection should be dropped
+    private boolean readFrames(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            int wanted = Protocol.HEADER_BYTES + Math.max(frameLength, 0);
+            if (line.length < wanted) {
+                line = Arrays.copyOf(line, wanted);
+            }
+            int count = Math.min(buffer.remaining(), wanted - lineLength);
+            buffer.get(line, lineLength, count);
+            lineLength += count;
+            if (lineLength < wanted) {
+                return true;
+            }
+
+            try {
+                if (frameLength < 0) {
+                    frameLength = Frame.payloadLength(line, 0, Protocol.MAX_CLIENT_FRAME);
+                    if (frameLength > 0) {
+                        continue;
+                    }
+                }
+                Frame frame = new Frame(line[0], Arrays.copyOfRange(line, Protocol.HEADER_BYTES, wanted));
+                lineLength = 0;
+                frameLength = -1;
+                if (!handler.handleFrame(frame)) {
+                    return false;
+                }
+                if (paused) {
+                    hold(buffer);
+                    return true;
+                }
+            } catch (IOException e) {
+                LOG.warn("{}, dropping connection", e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The read buffer is shared with the loop's other connections, so take a copy
+    private void hold(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            held = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+        }
+    }
+
+    // Loop thread: stop reading until resumeReading()
+    void pauseReading() {
+        paused = true;
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    // Loop thread: read again, starting with whatever was held back
+    void resumeReading() {
+        paused = false;
+        if (closed || !key.isValid()) {
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        ByteBuffer rest = held;
+        if (rest != null) {
+            held = null;
+            dispatch(rest);
+        }
+    }
+
+    // Any thread: run a task on this connection's loop, which drops the connection if it throws
+    void runOnLoop(Runnable task) {
+        loop.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                loop.failed(this, e);
+            }
+        });
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private int readOps() {
+        return paused ? 0 : SelectionKey.OP_READ;
+    }
+
+    private boolean isLoopback() {
+        try {
+            SocketAddress remote = channel.getRemoteAddress();
+            return remote instanceof InetSocketAddress && ((InetSocketAddress) remote).getAddress().isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void println(String line) {
+        print(line + "\n");
+    }
+
+    @Override
+    public void print(String text) {
+        send(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public boolean checkError() {
+        return error || closed;
+    }
+
+    @Override
+    public void disconnectOnOverflow() {
+        outbound.disconnectOnOverflow();
+    }
+
+    // Any thread: queue bytes and ask the loop to write them out, never blocks
+    @Override
+    public void send(ByteBuffer data) {
+        if (closed || overflowed) {
+            error = true;
+            return;
+        }
+        // Channel writes advance the position, so take a private view of the shared bytes
+        boolean queued = outbound.offer(data.duplicate());
+        if (!queued) {
+            // Disconnect policy: let the loop end the session so cleanup runs there
+            overflowed = true;
+            error = true;
+        }
+        if (!queued || outbound.isFlushDue()) {
+            if (flushQueued.compareAndSet(false, true)) {
+                loop.requestFlush(this);
+            }
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            // Wait for the flush delay, so the rest of a burst goes out in the same write
+            flushDeadline = System.nanoTime() + outbound.flushDelayNanos();
+            loop.requestDelayedFlush(this);
+        }
+    }
+
+    long getFlushDeadline() {
+        return flushDeadline;
+    }
+
+    // Loop thread: the flush delay ran out
+    void onFlushDelay() {
+        flushScheduled.set(false);
+        flush();
+    }
+
+    // Loop thread: write queued bytes until done or the socket buffer is full. Each write
+    // gathers up to a loop's worth of queued messages, so a burst is one system call.
+    void flush() {
+        flushQueued.set(false);
+        if (closed) {
+            return;
+        }
+        if (overflowed) {
+            disconnect();
+            return;
+        }
+        ByteBuffer[] gather = loop.gatherBuffers();
+        try {
+            while (true) {
+                int count = 0;
+                long bytes = 0;
+                if (unfinished != null) {
+                    for (ByteBuffer buffer : unfinished) {
+                        gather[count++] = buffer;
+                        bytes += buffer.remaining();
+                    }
+                    unfinished = null;
+                }
+                ByteBuffer next;
+                while (count < gather.length && bytes < EventLoop.MAX_GATHER_BYTES
+                        && (next = outbound.poll()) != null) {
+                    gather[count++] = next;
+                    bytes += next.remaining();
+                }
+                if (count == 0) {
+                    key.interestOps(readOps());
+                    return;
+                }
+
+                metrics.written(channel.write(gather, 0, count));
+                int first = 0;
+                while (first < count && !gather[first].hasRemaining()) {
+                    first++;
+                }
+                if (first < count) {
+                    // Kernel buffer full, resume when writable
+                    unfinished = Arrays.copyOfRange(gather, first, count);
+                    Arrays.fill(gather, 0, count, null);
+                    key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                Arrays.fill(gather, 0, count, null);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            Arrays.fill(gather, null);
+            disconnect();
+        }
+    }
+
+    // Loop thread: end the session (runs the handler cleanup exactly once)
+    void disconnect() {
+        if (!disconnected) {
+            disconnected = true;
+            if (handler != null) {
+                handler.cleanup();
+            }
+        }
+        close();
+    }
+
+    // Any thread: close the channel, its selection key is cancelled with it
+    @Override
+    public void close() {
+        closed = true;
+        outbound.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package minichat.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Accepts connections and spreads them round-robin across a fixed set of event loops
+class NioEngine {
+    private static final EventLog LOG = EventLog.get();
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ServerMetrics metrics;
+    private int next;
+
+    NioEngine(int port, SessionRegistry registry, OutboundConfig outboundConfig, ServerMetrics metrics,
+              int loopCount) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.metrics = metrics;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i, registry, outboundConfig, metrics);
+        }
+    }
+
+    // Accept on the calling thread until the server stops
+    void run(AtomicBoolean running) {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        while (running.get()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                metrics.connectionAccepted();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (running.get()) {
+                    LOG.error("Error accepting connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    int getLoopCount() {
+        return loops.length;
+    }
+
+    void shutdown() throws IOException {
+        serverChannel.close();
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package minichat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Capacity, overflow policy and write coalescing shared by every session's outbound queue,
+// along with how many times each policy has fired
+public final class OutboundConfig {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_FLUSH_BYTES = 16 * 1024;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // Queued output may wait this long to be written together with what follows it (0: write at once)
+    private final long flushDelayNanos;
+    // ...unless this many bytes are already waiting
+    private final int flushBytes;
+    private final LongAdder[] overflows = new LongAdder[OverflowPolicy.values().length];
+
+    public OutboundConfig(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, 0, DEFAULT_FLUSH_BYTES);
+    }
+
+    public OutboundConfig(int capacity, OverflowPolicy policy, long flushDelayMicros, int flushBytes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Outbound queue capacity must be positive: " + capacity);
+        }
+        if (flushDelayMicros < 0 || flushBytes < 1) {
+            throw new IllegalArgumentException("Flush delay must not be negative and flush bytes must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.flushDelayNanos = flushDelayMicros * 1000;
+        this.flushBytes = flushBytes;
+        for (int i = 0; i < overflows.length; i++) {
+            overflows[i] = new LongAdder();
+        }
+    }
+
+    // Reads -Dminichat.outbound.capacity, -Dminichat.outbound.policy,
+    // -Dminichat.outbound.flush.ms (may be fractional, e.g. 0.5) and -Dminichat.outbound.flush.bytes
+    public static OutboundConfig fromSystemProperties() {
+        int capacity = Integer.getInteger("minichat.outbound.capacity", DEFAULT_CAPACITY);
+        String policy = System.getProperty("minichat.outbound.policy", OverflowPolicy.DISCONNECT.name());
+        double flushMillis;
+        try {
+            flushMillis = Double.parseDouble(System.getProperty("minichat.outbound.flush.ms", "0"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid flush delay: " + System.getProperty("minichat.outbound.flush.ms"));
+        }
+        return new OutboundConfig(capacity, OverflowPolicy.parse(policy), Math.round(flushMillis * 1000),
+                Integer.getInteger("minichat.outbound.flush.bytes", DEFAULT_FLUSH_BYTES));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getFlushDelayNanos() {
+        return flushDelayNanos;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    // The policy applied, which is not this one for sessions that must never drop
+    void recordOverflow(OverflowPolicy applied) {
+        overflows[applied.ordinal()].increment();
+    }
+
+    // Times the given policy was applied to a full queue
+    public long getOverflowCount(OverflowPolicy policy) {
+        return overflows[policy.ordinal()].sum();
+    }
+}
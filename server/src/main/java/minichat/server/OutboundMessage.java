@@ -0,0 +1,130 @@
+package minichat.server;
+
+import java.nio.ByteBuffer;
+import minichat.protocol.FrameBuilder;
+import minichat.protocol.Protocol;
+import minichat.protocol.Utf8;
+
+// One message for clients. It is encoded at most once per wire format, on first use by the
+// broadcasting thread, and every recipient speaking that format queues the same bytes.
+// Both encodings are written straight into one exactly sized array: no date formatting
+// (the time of day comes from WallClock) and no intermediate strings.
+final class OutboundMessage {
+    private static final String PRIVATE_SEPARATOR = " " + SessionRegistry.PRIVATE_TAG + " ";
+    private static final String SERVER_SEPARATOR = " Server: ";
+
+    private final byte type;
+    private final long time;
+    private final byte kind;
+    // MESSAGE: sender, text. PRIVATE_MESSAGE: sender, target, text.
+    // PRESENCE: sender is the user, target the room. NOTICE: text.
+    private final String sender;
+    private final String target;
+    private final String text;
+
+    private ByteBuffer textLine;
+    private ByteBuffer frame;
+
+    private OutboundMessage(byte type, byte kind, String sender, String target, String text) {
+        this.type = type;
+        this.time = System.currentTimeMillis();
+        this.kind = kind;
+        this.sender = sender;
+        this.target = target;
+        this.text = text;
+    }
+
+    static OutboundMessage chat(String sender, String text) {
+        return new OutboundMessage(Protocol.MESSAGE, (byte) 0, sender, null, text);
+    }
+
+    static OutboundMessage privateMessage(String from, String to, String text) {
+        return new OutboundMessage(Protocol.PRIVATE_MESSAGE, (byte) 0, from, to, text);
+    }
+
+    static OutboundMessage presence(byte kind, String username, String room) {
+        return new OutboundMessage(Protocol.PRESENCE, kind, username, room, null);
+    }
+
+    static OutboundMessage notice(String text) {
+        return new OutboundMessage(Protocol.NOTICE, (byte) 0, null, null, text);
+    }
+
+    // Bytes for a client of the given format, must not be modified
+    ByteBuffer encoded(boolean binary) {
+        if (binary) {
+            if (frame == null) {
+                frame = encodeFrame();
+            }
+            return frame;
+        }
+        if (textLine == null) {
+            textLine = encodeTextLine();
+        }
+        return textLine;
+    }
+
+    private ByteBuffer encodeFrame() {
+        // Exact for ASCII text, the builder grows if it is not
+        int strings = length(sender) + length(target) + length(text);
+        FrameBuilder builder = new FrameBuilder(type, 8 + 1 + 3 * 4 + strings).putLong(time);
+        switch (type) {
+            case Protocol.MESSAGE:
+                builder.putString(sender).putString(text);
+                break;
+            case Protocol.PRIVATE_MESSAGE:
+                builder.putString(sender).putString(target).putString(text);
+                break;
+            case Protocol.PRESENCE:
+                builder.putByte(kind).putString(sender).putString(target);
+                break;
+            default:
+                builder.putString(text);
+                break;
+        }
+        return builder.build();
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    // The text protocol's line, as the server has always written it
+    private ByteBuffer encodeTextLine() {
+        switch (type) {
+            case Protocol.MESSAGE:
+                return line(time, " ", sender, ": ", text);
+            case Protocol.PRIVATE_MESSAGE:
+                return line(time, PRIVATE_SEPARATOR, sender, " -> ", target, ": ", text);
+            case Protocol.PRESENCE:
+                switch (kind) {
+                    case Protocol.WELCOME:
+                        return line(time, SERVER_SEPARATOR, "Welcome ", sender);
+                    case Protocol.GOODBYE:
+                        return line(time, SERVER_SEPARATOR, "Goodbye ", sender);
+                    case Protocol.JOINED_ROOM:
+                        return line(time, SERVER_SEPARATOR, sender, " joined the room");
+                    default:
+                        return line(time, SERVER_SEPARATOR, sender, " left the room");
+                }
+            default:
+                return line(time, SERVER_SEPARATOR, text);
+        }
+    }
+
+    // "HH:mm:ss" + parts + "\n": the parts are measured first, then the cached time of day
+    // and the UTF-8 of each part are copied into one array
+    private static ByteBuffer line(long time, String... parts) {
+        int length = WallClock.TIME_BYTES + 1;
+        for (String part : parts) {
+            length += Utf8.length(part);
+        }
+        byte[] line = new byte[length];
+        int offset = WallClock.putTime(time, line, 0);
+        for (String part : parts) {
+            offset = Utf8.put(part, line, offset);
+        }
+        line[offset] = '\n';
+        return ByteBuffer.wrap(line);
+    }
+}
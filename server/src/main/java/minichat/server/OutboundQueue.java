@@ -0,0 +1,101 @@
+package minichat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded queue of encoded messages waiting to be written to one session.
+// Any number of threads offer, a single writer polls.
+final class OutboundQueue {
+    private final ConcurrentLinkedQueue<ByteBuffer> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // Bytes of the queued messages, tells writers when a batch is worth sending early
+    private final AtomicLong bytes = new AtomicLong();
+    private final OutboundConfig config;
+    private final ServerMetrics metrics;
+    // Set for compressed sessions: a dropped deflate block would corrupt the rest of the stream
+    private volatile boolean lossless;
+
+    OutboundQueue(OutboundConfig config, ServerMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    // Never drop a message from now on, disconnect instead
+    void disconnectOnOverflow() {
+        lossless = true;
+    }
+
+    // Queue a message, applying the overflow policy when full.
+    // Returns false when the policy says the session must be disconnected.
+    boolean offer(ByteBuffer message) {
+        if (size.incrementAndGet() > config.getCapacity()) {
+            OverflowPolicy policy = lossless ? OverflowPolicy.DISCONNECT : config.getPolicy();
+            config.recordOverflow(policy);
+            switch (policy) {
+                case DROP_NEW:
+                    size.decrementAndGet();
+                    return true;
+                case DROP_OLDEST:
+                    ByteBuffer dropped = messages.poll();
+                    if (dropped != null) {
+                        size.decrementAndGet();
+                        bytes.addAndGet(-dropped.remaining());
+                        metrics.dequeued(false);
+                    }
+                    break;
+                default:
+                    size.decrementAndGet();
+                    return false;
+            }
+        }
+        bytes.addAndGet(message.remaining());
+        // Counted before a writer can take it, so the gauge never dips below zero
+        metrics.queued(size.get());
+        messages.add(message);
+        return true;
+    }
+
+    // Next message for the writer
+    ByteBuffer poll() {
+        return take(true);
+    }
+
+    private ByteBuffer take(boolean written) {
+        ByteBuffer message = messages.poll();
+        if (message != null) {
+            size.decrementAndGet();
+            bytes.addAndGet(-message.remaining());
+            metrics.dequeued(written);
+        }
+        return message;
+    }
+
+    boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    long flushDelayNanos() {
+        return config.getFlushDelayNanos();
+    }
+
+    // Enough is queued to write now rather than wait for the flush delay
+    boolean isFlushDue() {
+        return config.getFlushDelayNanos() == 0 || bytes.get() >= config.getFlushBytes();
+    }
+
+    void clear() {
+        while (take(false) != null) {
+            // Drain
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package minichat.server;
+
+// What to do when a session's outbound queue is full
+public enum OverflowPolicy {
+    // Discard the oldest queued message to make room
+    DROP_OLDEST,
+    // Discard the message being queued
+    DROP_NEW,
+    // Give up on the client and close its connection
+    DISCONNECT;
+
+    public static OverflowPolicy parse(String name) {
+        for (OverflowPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name.replace('-', '_'))) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown overflow policy: " + name);
+    }
+}
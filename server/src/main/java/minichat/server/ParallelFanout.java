@@ -0,0 +1,96 @@
+package minichat.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+// Splits a broadcast to a large room over a pool of fan-out threads, one per core by default,
+// so queueing a message on 10,000 members keeps every core busy rather than only the thread
+// that broadcast it. The member array is halved until the pieces are small enough, and idle
+// threads steal pieces from busy ones. Smaller rooms are not worth the hand-off and stay on
+// the broadcasting thread.
+final class ParallelFanout {
+    private final ForkJoinPool pool;
+    // Members from which a room's broadcasts are split
+    private final int threshold;
+    // Most members one task queues on
+    private final int chunk;
+
+    ParallelFanout(int threads, int threshold, int chunk) {
+        this.pool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("fanout-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        this.threshold = Math.max(2, threshold);
+        this.chunk = Math.max(1, chunk);
+    }
+
+    // Configured by system properties, null (never split) with a single thread:
+    //   -Dminichat.fanout.threads=<n>    (fan-out threads, default one per available processor)
+    //   -Dminichat.fanout.parallel=<n>   (room size from which broadcasts are split, default 2048)
+    //   -Dminichat.fanout.chunk=<n>      (members per task, default 512)
+    static ParallelFanout fromSystemProperties() {
+        int threads = Integer.getInteger("minichat.fanout.threads", Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            return null;
+        }
+        return new ParallelFanout(threads,
+                Integer.getInteger("minichat.fanout.parallel", 2048),
+                Integer.getInteger("minichat.fanout.chunk", 512));
+    }
+
+    boolean splits(int recipients) {
+        return recipients >= threshold;
+    }
+
+    // Queue the message on every recipient from the pool, waits until all are done. Both
+    // encodings (and compressed, the shared stream's block or null) must be made already:
+    // the tasks only read them. Returns the recipients whose writes failed (or null).
+    List<ClientSession> broadcast(ClientSession[] recipients, OutboundMessage message, ByteBuffer compressed) {
+        return pool.invoke(new Piece(recipients, 0, recipients.length, message, compressed));
+    }
+
+    int getThreads() {
+        return pool.getParallelism();
+    }
+
+    private final class Piece extends RecursiveTask<List<ClientSession>> {
+        private static final long serialVersionUID = 1L;
+
+        private final ClientSession[] recipients;
+        private final int from;
+        private final int to;
+        private final OutboundMessage message;
+        private final ByteBuffer compressed;
+
+        Piece(ClientSession[] recipients, int from, int to, OutboundMessage message, ByteBuffer compressed) {
+            this.recipients = recipients;
+            this.from = from;
+            this.to = to;
+            this.message = message;
+            this.compressed = compressed;
+        }
+
+        @Override
+        protected List<ClientSession> compute() {
+            if (to - from <= chunk) {
+                return Room.sendRange(recipients, from, to, message, null, compressed);
+            }
+            int middle = (from + to) >>> 1;
+            Piece left = new Piece(recipients, from, middle, message, compressed);
+            left.fork();
+            List<ClientSession> failed = new Piece(recipients, middle, to, message, compressed).compute();
+            List<ClientSession> leftFailed = left.join();
+            if (leftFailed == null) {
+                return failed;
+            }
+            if (failed != null) {
+                leftFailed.addAll(failed);
+            }
+            return leftFailed;
+        }
+    }
+}
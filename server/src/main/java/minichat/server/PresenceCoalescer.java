@@ -0,0 +1,148 @@
+package minichat.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import minichat.protocol.Protocol;
+
+// Turns join/leave storms into digests. While presence changes come slower than stormRate
+// per second every one is broadcast as it happens. Above that (5,000 clients reconnecting
+// after a network blip), announcements are collected and sent every window as one notice
+// per room and kind ("Welcome alice, bob, carol and 312 others"), and rooms batch their
+// roster deltas for presence subscribers the same way, so a storm costs each member a few
+// writes per window instead of one per arrival.
+final class PresenceCoalescer {
+    // Names spelled out in a digest, the rest are counted
+    private static final int NAMES_SHOWN = 3;
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final SessionRegistry registry;
+    // Changes per second that start a storm, 0 never does
+    private final int stormRate;
+    private final long windowNanos;
+
+    // Changes counted in fixed one-second windows: the current one and the one before
+    private final AtomicLong second = new AtomicLong();
+    private final AtomicInteger current = new AtomicInteger();
+    private volatile int previous;
+
+    private static final class Change {
+        final String room;
+        final byte kind;
+        final String username;
+
+        Change(String room, byte kind, String username) {
+            this.room = room;
+            this.kind = kind;
+            this.username = username;
+        }
+    }
+
+    private final Queue<Change> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    PresenceCoalescer(SessionRegistry registry, int stormRate, long windowMillis) {
+        this.registry = registry;
+        this.stormRate = Math.max(0, stormRate);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, windowMillis));
+    }
+
+    // Configured by system properties:
+    //   -Dminichat.presence.storm.rate=<n>   (joins and leaves per second that start batching, default 100, 0 = never)
+    //   -Dminichat.presence.storm.ms=<ms>    (digest interval while batching, default 500)
+    static PresenceCoalescer fromSystemProperties(SessionRegistry registry) {
+        return new PresenceCoalescer(registry,
+                Integer.getInteger("minichat.presence.storm.rate", 100),
+                Integer.getInteger("minichat.presence.storm.ms", 500));
+    }
+
+    // True while joins and leaves arrive faster than the storm rate (this second or the last)
+    boolean isStorming() {
+        if (stormRate == 0) {
+            return false;
+        }
+        roll();
+        return current.get() >= stormRate || previous >= stormRate;
+    }
+
+    // Count one presence change. Returns true if it was queued for the next digest (a storm,
+    // or an earlier digest still pending, which must not be overtaken), false if the caller
+    // broadcasts it right away.
+    boolean offer(String room, byte kind, String username) {
+        if (stormRate == 0) {
+            return false;
+        }
+        roll();
+        boolean storming = current.incrementAndGet() >= stormRate || previous >= stormRate;
+        if (!storming && pending.isEmpty()) {
+            return false;
+        }
+        pending.add(new Change(room, kind, username));
+        scheduleFlush();
+        return true;
+    }
+
+    // Start a new rate window once a second has passed, approximately: counts racing the
+    // switch can land in either window
+    private void roll() {
+        long now = System.nanoTime() / SECOND_NANOS;
+        long last = second.get();
+        if (now != last && second.compareAndSet(last, now)) {
+            int count = current.getAndSet(0);
+            previous = now == last + 1 ? count : 0;
+        }
+    }
+
+    // Make sure a digest goes out within the window (also for batched roster deltas)
+    void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            FlushTimer.schedule(this::flush, windowNanos);
+        }
+    }
+
+    // Timer thread: one announcement per room and kind, in the order they first came up
+    private void flush() {
+        flushScheduled.set(false);
+        Map<String, Map<Byte, List<String>>> byRoom = new LinkedHashMap<>();
+        Change change;
+        while ((change = pending.poll()) != null) {
+            byRoom.computeIfAbsent(change.room, room -> new LinkedHashMap<>())
+                    .computeIfAbsent(change.kind, kind -> new ArrayList<>())
+                    .add(change.username);
+        }
+        for (Map.Entry<String, Map<Byte, List<String>>> room : byRoom.entrySet()) {
+            for (Map.Entry<Byte, List<String>> kind : room.getValue().entrySet()) {
+                registry.announce(room.getKey(), kind.getKey(), kind.getValue());
+            }
+        }
+        registry.flushRosterUpdates();
+    }
+
+    // "alice", "alice and bob", "alice, bob, carol and 312 others"
+    static String digestText(byte kind, List<String> names) {
+        StringBuilder list = new StringBuilder();
+        int shown = names.size() <= NAMES_SHOWN + 1 ? names.size() : NAMES_SHOWN;
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                list.append(i == names.size() - 1 ? " and " : ", ");
+            }
+            list.append(names.get(i));
+        }
+        if (shown < names.size()) {
+            list.append(" and ").append(names.size() - shown).append(" others");
+        }
+        switch (kind) {
+            case Protocol.WELCOME:
+                return "Welcome " + list;
+            case Protocol.GOODBYE:
+                return "Goodbye " + list;
+            case Protocol.JOINED_ROOM:
+                return list + " joined the room";
+            default:
+                return list + " left the room";
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package minichat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// JFR: a slow write of a fan-out to one member. Inside a broadcast a write only queues (or
+// compresses) the message, so "fan-out" writes are slow on contention or deflate; "socket"
+// writes are the writer draining a session's queue, slow when the client does not read.
+@Name("minichat.RecipientWrite")
+@Label("Slow Recipient Write")
+@Description("A write to one client that took longer than the threshold")
+@Category("MiniChat")
+@Threshold("1 ms")
+@StackTrace(false)
+final class RecipientWriteEvent extends jdk.jfr.Event {
+    // Checked once per broadcast, so a fan-out without a recording times nothing per member
+    private static final RecipientWriteEvent PROBE = new RecipientWriteEvent();
+
+    @Label("User")
+    String user;
+
+    @Label("Stage")
+    @Description("fan-out (queueing inside a broadcast) or socket (writer thread)")
+    String stage;
+
+    @Label("Size")
+    @DataAmount
+    int bytes;
+
+    static boolean isRecording() {
+        return PROBE.isEnabled();
+    }
+}
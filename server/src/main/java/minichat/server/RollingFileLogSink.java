@@ -0,0 +1,104 @@
+package minichat.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// "yyyy-MM-dd HH:mm:ss.SSS LEVEL message" lines appended to a file. Once the file would grow
+// past maxBytes it is renamed to <file>.1 (older ones shift up to <file>.<keep>) and a new
+// one is started. Rolls happen between batches, so a file can end up one batch too large.
+final class RollingFileLogSink implements LogSink {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.");
+
+    private final Path file;
+    private final long maxBytes;
+    private final int keep;
+    private final StringBuilder batch = new StringBuilder();
+    private OutputStream stream;
+    private long size;
+    private long second = Long.MIN_VALUE;
+    private String time;
+
+    RollingFileLogSink(Path file, long maxBytes, int keep) throws IOException {
+        if (maxBytes < 1 || keep < 0) {
+            throw new IllegalArgumentException("Log file size must be positive and count not negative");
+        }
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        stream = new FileOutputStream(file.toFile(), true);
+        size = Files.size(file);
+    }
+
+    @Override
+    public void append(long timeMillis, LogLevel level, CharSequence message) {
+        if (timeMillis / 1000 != second) {
+            second = timeMillis / 1000;
+            time = Instant.ofEpochMilli(timeMillis).atZone(ZoneId.systemDefault()).format(TIME_FORMAT);
+        }
+        int millis = (int) Math.floorMod(timeMillis, 1000L);
+        batch.append(time)
+                .append((char) ('0' + millis / 100))
+                .append((char) ('0' + millis / 10 % 10))
+                .append((char) ('0' + millis % 10))
+                .append(' ').append(level.name());
+        for (int i = level.name().length(); i < 5; i++) {
+            batch.append(' ');
+        }
+        batch.append(' ').append(message).append('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (batch.length() == 0) {
+            return;
+        }
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        batch.setLength(0);
+        if (size > 0 && size + bytes.length > maxBytes) {
+            roll();
+        }
+        stream.write(bytes);
+        stream.flush();
+        size += bytes.length;
+    }
+
+    // minichat.log.(n-1) -> minichat.log.n ... minichat.log -> minichat.log.1
+    private void roll() throws IOException {
+        stream.close();
+        if (keep == 0) {
+            Files.delete(file);
+        } else {
+            Files.deleteIfExists(sibling(keep));
+            for (int i = keep - 1; i >= 1; i--) {
+                Path older = sibling(i);
+                if (Files.exists(older)) {
+                    Files.move(older, sibling(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, sibling(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private Path sibling(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        stream.close();
+    }
+}
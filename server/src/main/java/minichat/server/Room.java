@@ -0,0 +1,342 @@
+package minichat.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A named room with its own members and broadcast path, so fan-out cost follows
+// the room's size and traffic in one room never touches another room's state
+final class Room {
+    private static final ClientSession[] EMPTY = new ClientSession[0];
+
+    final String name;
+    // Serializes membership changes and the roster output that goes with them. A ReentrantLock
+    // rather than the rooms map's bin monitor: a virtual thread replaying the journal to a
+    // newcomer while holding it does not pin its carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Dropped from the registry, whoever gets the lock afterwards must look the room up again
+    private volatile boolean closed;
+    // Copy-on-write member array, rebuilt only on join/leave
+    private volatile ClientSession[] members = EMPTY;
+    // Members by name for AllUsers: sorted, and safe to walk while people come and go
+    private final ConcurrentSkipListMap<String, ClientSession> byName = new ConcurrentSkipListMap<>();
+    // Membership changes so far, the version presence subscribers see
+    private long rosterVersion;
+    // Deltas held back during a join/leave storm, in version order (null when none)
+    private List<RosterUpdate> pendingRoster;
+
+    // Members that negotiated compression share one deflate stream, so a broadcast is
+    // compressed once rather than once per member. Only safe when outbound queues never
+    // drop a message (a reader that misses a block cannot inflate the rest of the stream).
+    private final boolean shareCompression;
+    private volatile DeflateContext shared;
+    // A compressed member joined since the last broadcast: it has none of the stream so far
+    private boolean sharedResetPending;
+
+    // Recent chat and notices, null when history is turned off
+    final RoomHistory history;
+
+    Room(String name, boolean shareCompression) {
+        this.name = name;
+        this.shareCompression = shareCompression;
+        this.history = RoomHistory.CAPACITY > 0 ? new RoomHistory(RoomHistory.CAPACITY) : null;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Membership changes only happen while holding lock()
+    void add(ClientSession session) {
+        if (session.deflating == null || !shareCompression) {
+            addMember(session);
+            return;
+        }
+        // Ordered against broadcasts: none can hand the newcomer a block from the middle of the stream
+        if (shared == null) {
+            shared = new DeflateContext();
+        }
+        shared.lock();
+        try {
+            sharedResetPending = true;
+            addMember(session);
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    private void addMember(ClientSession session) {
+        ClientSession[] current = members;
+        ClientSession[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = session;
+        members = next;
+        byName.put(session.username, session);
+        rosterVersion++;
+    }
+
+    // False if the session was not a member. A compressed member is told the room's stream
+    // has ended for them, ordered against broadcasts so no block of it follows.
+    boolean remove(ClientSession session) {
+        DeflateContext context = shared;
+        if (session.deflating == null || context == null) {
+            return removeMember(session);
+        }
+        context.lock();
+        try {
+            if (!removeMember(session)) {
+                return false;
+            }
+            ByteBuffer ended = context.endFrame();
+            if (ended != null) {
+                session.deflating.sendCompressed(ended);
+            }
+            return true;
+        } finally {
+            context.unlock();
+        }
+    }
+
+    private boolean removeMember(ClientSession session) {
+        ClientSession[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == session) {
+                ClientSession[] next = new ClientSession[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                members = next;
+                byName.remove(session.username, session);
+                rosterVersion++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A user of another cluster node: listed by AllUsers, but never a broadcast recipient.
+    // Not a roster change (presence stays node-local), so no lock() needed.
+    void addRemote(ClientSession session) {
+        byName.put(session.username, session);
+    }
+
+    void removeRemote(ClientSession session) {
+        byName.remove(session.username, session);
+    }
+
+    // Like add() and remove(), only called while holding lock()
+    long rosterVersion() {
+        return rosterVersion;
+    }
+
+    // Queue a membership change on every presence subscriber but the one it is about, or
+    // hold it for flushRosterUpdates() if batch is set (or earlier ones are still held).
+    // Returns true if it was held. Runs under lock(), so subscribers get the deltas
+    // in version order; a failed write is left for the next broadcast to notice.
+    boolean sendRosterUpdate(RosterUpdate update, ClientSession subject, boolean batch) {
+        if (batch || pendingRoster != null) {
+            if (pendingRoster == null) {
+                pendingRoster = new ArrayList<>();
+            }
+            pendingRoster.add(update);
+            return true;
+        }
+        for (ClientSession session : members) {
+            if (session.presence && session != subject) {
+                send(session, update.encoded(session.binary));
+            }
+        }
+        return false;
+    }
+
+    // Under lock(): the held deltas to every subscriber, as one buffer per wire
+    // format. Those a subscriber already has (its snapshot is newer) are ignored by the client.
+    void flushRosterUpdates() {
+        List<RosterUpdate> updates = pendingRoster;
+        if (updates == null) {
+            return;
+        }
+        pendingRoster = null;
+        ByteBuffer text = null;
+        ByteBuffer frames = null;
+        for (ClientSession session : members) {
+            if (!session.presence) {
+                continue;
+            }
+            if (session.binary) {
+                if (frames == null) {
+                    frames = concat(updates, true);
+                }
+                send(session, frames);
+            } else {
+                if (text == null) {
+                    text = concat(updates, false);
+                }
+                send(session, text);
+            }
+        }
+    }
+
+    private static ByteBuffer concat(List<RosterUpdate> updates, boolean binary) {
+        int length = 0;
+        for (RosterUpdate update : updates) {
+            length += update.encoded(binary).remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(length);
+        for (RosterUpdate update : updates) {
+            all.put(update.encoded(binary).duplicate());
+        }
+        all.flip();
+        return all;
+    }
+
+    private static void send(ClientSession session, ByteBuffer data) {
+        try {
+            session.writer.send(data);
+        } catch (Exception e) {
+            // Ignore
+        }
+    }
+
+    // Current members, must not be modified
+    ClientSession[] members() {
+        return members;
+    }
+
+    // Members whose names start with prefix (everyone for ""), in name order, skipping the
+    // first skip of them and stopping after limit. Only walks the index that far.
+    List<ClientSession> membersByName(String prefix, long skip, int limit) {
+        List<ClientSession> page = new ArrayList<>(Math.min(limit, 64));
+        for (ClientSession session : byName.tailMap(prefix).values()) {
+            if (!session.username.startsWith(prefix) || page.size() == limit) {
+                break;
+            }
+            if (skip > 0) {
+                skip--;
+            } else {
+                page.add(session);
+            }
+        }
+        return page;
+    }
+
+    int size() {
+        return members.length;
+    }
+
+    boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    // Queue the shared bytes on every member (one encoding per wire format), split over
+    // parallel's threads if the room is large enough for it (parallel may be null).
+    // Returns the ones whose writes failed (or null).
+    List<ClientSession> broadcast(OutboundMessage message, ParallelFanout parallel) {
+        DeflateContext context = shared;
+        if (context == null) {
+            return broadcast(members, message, null, parallel);
+        }
+
+        context.lock();
+        try {
+            if (sharedResetPending) {
+                // Members following the old stream can let it go (the newcomer never saw it)
+                ByteBuffer ended = context.reset();
+                if (ended != null) {
+                    for (ClientSession session : members) {
+                        if (session.deflating != null) {
+                            session.deflating.sendCompressed(ended);
+                        }
+                    }
+                }
+                sharedResetPending = false;
+            }
+            return broadcast(members, message, context, parallel);
+        } finally {
+            context.unlock();
+        }
+    }
+
+    private static List<ClientSession> broadcast(ClientSession[] recipients, OutboundMessage message,
+                                                 DeflateContext context, ParallelFanout parallel) {
+        if (parallel == null || !parallel.splits(recipients.length)) {
+            return sendRange(recipients, 0, recipients.length, message, context, null);
+        }
+        // Made here, once, so the fan-out threads only read them
+        message.encoded(false);
+        ByteBuffer frame = message.encoded(true);
+        ByteBuffer compressed = context != null ? context.compress(frame) : null;
+        return parallel.broadcast(recipients, message, compressed);
+    }
+
+    // Queue the message on recipients[from, to). Compressed members get compressed, the shared
+    // stream's block, or if that is null and context is set, a block compressed on first need.
+    static List<ClientSession> sendRange(ClientSession[] recipients, int from, int to, OutboundMessage message,
+                                         DeflateContext context, ByteBuffer compressed) {
+        List<ClientSession> failed = null;
+        boolean trace = RecipientWriteEvent.isRecording();
+        for (int i = from; i < to; i++) {
+            ClientSession session = recipients[i];
+            RecipientWriteEvent event = null;
+            if (trace) {
+                event = new RecipientWriteEvent();
+                event.begin();
+            }
+            boolean ok;
+            try {
+                if (session.deflating == null) {
+                    session.writer.send(message.encoded(session.binary));
+                } else {
+                    if (compressed == null && context != null) {
+                        compressed = context.compress(message.encoded(true));
+                    }
+                    if (compressed != null) {
+                        session.deflating.sendCompressed(compressed);
+                    } else {
+                        // No shared stream: the member's own one
+                        session.deflating.send(message.encoded(true));
+                    }
+                }
+                // Check if write actually failed (connection closed)
+                ok = !session.writer.checkError();
+            } catch (Exception e) {
+                ok = false;
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.user = session.username;
+                    event.stage = "fan-out";
+                    event.bytes = session.deflating != null && compressed != null
+                            ? compressed.remaining() : message.encoded(session.binary).remaining();
+                    event.commit();
+                }
+            }
+            if (!ok) {
+                if (failed == null) {
+                    failed = new ArrayList<>();
+                }
+                failed.add(session);
+            }
+        }
+        return failed;
+    }
+
+    // The room was dropped, free its shared stream
+    void close() {
+        closed = true;
+        DeflateContext context = shared;
+        if (context != null) {
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package minichat.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A room's most recent broadcasts in memory, kept encoded in both wire formats so serving
+// them is only queueing the same bytes again. Fixed number of slots, and every entry is at most
+// one line (WireReader.MAX_LINE_BYTES) per format, so a room never holds more than that.
+//
+// No locks: a broadcasting thread claims the next sequence number and swaps an immutable entry
+// into its slot; readers walk back from the newest sequence and skip slots that are not filled
+// yet or already reused for a later message.
+final class RoomHistory {
+    // -Dminichat.history.size, messages kept per room (default 0, off). Opt in: every message
+    // kept is encoded for both protocols and stays referenced until it is pushed out.
+    static final int CAPACITY = Integer.getInteger("minichat.history.size", 0);
+
+    private static final class Entry {
+        final long sequence;
+        final ByteBuffer text;
+        final ByteBuffer frame;
+
+        Entry(long sequence, ByteBuffer text, ByteBuffer frame) {
+            this.sequence = sequence;
+            this.text = text;
+            this.frame = frame;
+        }
+
+        int bytes() {
+            return text.remaining() + frame.remaining();
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    RoomHistory(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    // Any thread: keep a message, replacing the oldest once full
+    void add(OutboundMessage message) {
+        long sequence = next.getAndIncrement();
+        Entry entry = new Entry(sequence, message.encoded(false), message.encoded(true));
+        int slot = (int) (sequence % slots.length());
+        Entry replaced;
+        do {
+            replaced = slots.get(slot);
+            if (replaced != null && replaced.sequence > sequence) {
+                // We stalled for a whole lap, a newer message already took the slot
+                return;
+            }
+        } while (!slots.compareAndSet(slot, replaced, entry));
+        bytes.addAndGet(entry.bytes() - (replaced != null ? replaced.bytes() : 0));
+    }
+
+    // Up to count of the most recent messages, oldest first. The buffers must not be modified.
+    List<ByteBuffer> recent(int count, boolean binary) {
+        long newest = next.get() - 1;
+        long oldest = Math.max(0, newest - Math.min(count, slots.length()) + 1);
+        if (newest < oldest) {
+            return Collections.emptyList();
+        }
+        List<ByteBuffer> messages = new ArrayList<>((int) (newest - oldest + 1));
+        for (long sequence = oldest; sequence <= newest; sequence++) {
+            Entry entry = slots.get((int) (sequence % slots.length()));
+            if (entry != null && entry.sequence == sequence) {
+                messages.add(binary ? entry.frame : entry.text);
+            }
+        }
+        return messages;
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+
+    // Messages currently held
+    int size() {
+        return (int) Math.min(next.get(), slots.length());
+    }
+
+    // Encoded bytes currently held, both formats
+    long bytes() {
+        return bytes.get();
+    }
+}
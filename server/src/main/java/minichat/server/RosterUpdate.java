@@ -0,0 +1,84 @@
+package minichat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import minichat.protocol.FrameBuilder;
+import minichat.protocol.Protocol;
+
+// Roster messages for presence subscribers: a room's full member list once, then one delta per
+// membership change. A delta is encoded at most once per wire format and the same bytes go to
+// every subscriber, like a broadcast; members are listed in the room's own order, so neither
+// needs a sort or any date formatting.
+final class RosterUpdate {
+    private final long time;
+    private final long version;
+    private final byte kind;
+    private final String username;
+    private final long joinedAt;
+
+    private ByteBuffer textLine;
+    private ByteBuffer frame;
+
+    private RosterUpdate(long version, byte kind, ClientSession session) {
+        this.time = System.currentTimeMillis();
+        this.version = version;
+        this.kind = kind;
+        this.username = session.username;
+        this.joinedAt = session.joinedAt.toEpochMilli();
+    }
+
+    static RosterUpdate added(long version, ClientSession session) {
+        return new RosterUpdate(version, Protocol.ROSTER_ADDED, session);
+    }
+
+    static RosterUpdate removed(long version, ClientSession session) {
+        return new RosterUpdate(version, Protocol.ROSTER_REMOVED, session);
+    }
+
+    // Bytes for a client of the given format, must not be modified
+    ByteBuffer encoded(boolean binary) {
+        if (binary) {
+            if (frame == null) {
+                frame = new FrameBuilder(Protocol.ROSTER_DELTA, 32 + username.length())
+                        .putLong(time)
+                        .putLong(version)
+                        .putByte(kind)
+                        .putString(username)
+                        .putLong(joinedAt)
+                        .build();
+            }
+            return frame;
+        }
+        if (textLine == null) {
+            String line = kind == Protocol.ROSTER_ADDED
+                    ? Protocol.ROSTER_ADDED_PREFIX + version + "\t" + joinedAt + "\t" + username
+                    : Protocol.ROSTER_REMOVED_PREFIX + version + "\t" + username;
+            textLine = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return textLine;
+    }
+
+    // The room's members at this version, for one subscriber. Text clients get all the lines
+    // in one buffer, so nothing else queued for them can land in between.
+    static ByteBuffer snapshot(String room, long version, ClientSession[] members, boolean binary) {
+        if (binary) {
+            FrameBuilder frame = new FrameBuilder(Protocol.ROSTER, 32 + room.length() + members.length * 24)
+                    .putLong(System.currentTimeMillis())
+                    .putString(room)
+                    .putLong(version)
+                    .putInt(members.length);
+            for (ClientSession member : members) {
+                frame.putString(member.username).putLong(member.joinedAt.toEpochMilli());
+            }
+            return frame.build();
+        }
+        StringBuilder sb = new StringBuilder(32 + room.length() + members.length * 32);
+        sb.append(Protocol.ROSTER_PREFIX).append(version).append('\t').append(members.length)
+                .append('\t').append(room).append('\n');
+        for (ClientSession member : members) {
+            sb.append(Protocol.ROSTER_ENTRY_PREFIX).append(member.joinedAt.toEpochMilli())
+                    .append('\t').append(member.username).append('\n');
+        }
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -2,19 +2,74 @@ package minichat.server;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.ObjectName;
 
 public class Server {
+    private static final EventLog LOG = EventLog.get();
+
     private ServerSocket serverSocket;
+    private NioEngine nioEngine;
+    private ExecutorService virtualThreads;
+    private ExecutorService writers;
+    private final IoMode mode;
     private final SessionRegistry registry;
+    private final OutboundConfig outboundConfig;
+    private final MessageJournal journal;
+    private final ServerMetrics metrics;
+    // Links to the other nodes (null when this server runs alone)
+    private final Cluster cluster;
+    // Where the metrics are published over JMX (null if they could not be)
+    private final ObjectName statsName;
     private final AtomicBoolean running;
     private Thread acceptThread;
 
     public Server(int port) throws IOException {
-        this.serverSocket = new ServerSocket(port);
-        this.registry = new SessionRegistry();
+        this(port, IoMode.THREADS);
+    }
+
+    public Server(int port, IoMode mode) throws IOException {
+        this(port, mode, OutboundConfig.fromSystemProperties());
+    }
+
+    public Server(int port, IoMode mode, OutboundConfig outboundConfig) throws IOException {
+        this(port, mode, outboundConfig, ClusterConfig.fromSystemProperties());
+    }
+
+    // A cluster node if clusterConfig is not null
+    public Server(int port, IoMode mode, OutboundConfig outboundConfig, ClusterConfig clusterConfig)
+            throws IOException {
+        this.mode = mode;
+        this.journal = MessageJournal.fromSystemProperties();
+        this.metrics = new ServerMetrics();
+        this.registry = new SessionRegistry(outboundConfig, journal, metrics);
+        this.cluster = clusterConfig != null ? registry.joinCluster(clusterConfig) : null;
+        this.outboundConfig = outboundConfig;
         this.running = new AtomicBoolean(true);
 
+        if (mode == IoMode.NIO) {
+            this.nioEngine = new NioEngine(port, registry, outboundConfig, metrics,
+                    Runtime.getRuntime().availableProcessors());
+        } else {
+            if (mode == IoMode.VIRTUAL) {
+                this.virtualThreads = newVirtualThreadExecutor();
+                this.writers = virtualThreads;
+            } else {
+                // Writer threads only exist while some session has queued output
+                AtomicInteger writerIds = new AtomicInteger();
+                this.writers = Executors.newCachedThreadPool(r -> {
+                    Thread thread = new Thread(r, "writer-" + writerIds.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.serverSocket = new ServerSocket(port);
+        }
+        this.statsName = registry.getStats().register(getPort());
+
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\nShutting down server...");
@@ -23,56 +78,147 @@ public class Server {
     }
 
     public void start() {
-        System.out.println("Server started on port " + serverSocket.getLocalPort());
+        System.out.println("Server started on port " + getPort() + " (" + describeMode() + ")");
         System.out.println("------------------------------------------------------------------------");
 
         acceptThread = Thread.currentThread();
+        if (cluster != null) {
+            cluster.start();
+        }
+        if (mode == IoMode.NIO) {
+            nioEngine.run(running);
+            return;
+        }
+
         while (running.get()) {
             try {
                 Socket clientSocket = serverSocket.accept();
+                metrics.connectionAccepted();
                 // Start a new thread for each client
-                ClientHandler handler = new ClientHandler(clientSocket, registry);
-                handler.start();
+                ClientHandler handler = new ClientHandler(clientSocket, registry, writers, outboundConfig, metrics);
+                if (virtualThreads != null) {
+                    virtualThreads.execute(handler);
+                } else {
+                    new Thread(handler).start();
+                }
             } catch (IOException e) {
                 if (running.get()) {
-                    System.err.println("Error accepting connection: " + e.getMessage());
+                    LOG.error("Error accepting connection: {}", e.getMessage());
                 }
             }
         }
     }
 
+    private String describeMode() {
+        if (mode == IoMode.NIO) {
+            return "nio, " + nioEngine.getLoopCount() + " event loops";
+        } else if (mode == IoMode.VIRTUAL) {
+            return "virtual thread per connection";
+        }
+        return "thread per connection";
+    }
+
     public void shutdown() {
         running.set(false);
         try {
-            // Close all client sessions
+            printHistoryUsage();
+            ServerStats.unregister(statsName);
+            // Peers drop this node's users, rather than hear each of them leave
+            if (cluster != null) {
+                cluster.close();
+            }
+
+            // Close all client sessions, after the sequencer (if any) has sent what it holds
             registry.closeAll();
 
             // Close server socket
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (nioEngine != null) {
+                nioEngine.shutdown();
+            }
+            if (writers != null) {
+                writers.shutdownNow();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            // Lines still queued in the event log are written before the JVM exits
+            LOG.flush();
+            printOverflowCounts();
+            if (LOG.getDroppedCount() > 0) {
+                System.out.println("Log events dropped: " + LOG.getDroppedCount());
+            }
         } catch (IOException e) {
             System.err.println("Error during shutdown: " + e.getMessage());
         }
     }
 
+    private void printHistoryUsage() {
+        int size = registry.getHistorySize();
+        if (size > 0) {
+            System.out.println("Room history: " + size + " messages, "
+                    + (registry.getHistoryBytes() + 1023) / 1024 + " KB");
+        }
+    }
+
+    private void printOverflowCounts() {
+        long total = 0;
+        StringBuilder sb = new StringBuilder("Outbound queue overflows (" + outboundConfig.getPolicy() + "):");
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            long count = outboundConfig.getOverflowCount(policy);
+            sb.append(' ').append(policy.name().toLowerCase()).append('=').append(count);
+            total += count;
+        }
+        if (total > 0) {
+            System.out.println(sb);
+        }
+    }
+
     public int getPort() {
+        if (nioEngine != null) {
+            return nioEngine.getPort();
+        }
         return serverSocket.getLocalPort();
     }
 
+    public int getUserCount() {
+        return registry.getUserCount();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Looked up reflectively so the server still builds and runs on Java 17
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        }
+    }
+
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: java minichat.server.Server <port>");
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java minichat.server.Server <port> [threads|virtual|nio]");
             System.exit(1);
         }
 
         try {
             int port = Integer.parseInt(args[0]);
-            Server server = new Server(port);
+            IoMode mode = args.length == 2 ? IoMode.parse(args[1]) : IoMode.THREADS;
+            Server server = new Server(port, mode);
             server.start();
         } catch (NumberFormatException e) {
             System.err.println("Invalid port number: " + args[0]);
             System.exit(1);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
             System.err.println("Failed to start server: " + e.getMessage());
             System.exit(1);
@@ -0,0 +1,123 @@
+package minichat.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Live counters of one server, bumped on the hot path by every handler, writer and event
+// loop. All of them are LongAdders (striped, so concurrent updates do not contend) or
+// written only when a new high-water mark is reached. Reading sums the stripes, which is
+// left to the rare reader: JMX and the Stats command (see ServerStats).
+public final class ServerMetrics {
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder registrations = new LongAdder();
+    // Lines or frames received from clients, and the bytes they came in
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    // Messages handed to a socket write, and the bytes written
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder failedWriterRemovals = new LongAdder();
+    // Messages waiting in outbound queues right now, across all sessions
+    private final LongAdder queuedMessages = new LongAdder();
+    // Longest any single outbound queue has been
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    // Time to queue one room broadcast on all its members
+    private final TimeHistogram fanout = new TimeHistogram();
+
+    void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    void registered() {
+        registrations.increment();
+    }
+
+    void received(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void messageIn() {
+        messagesIn.increment();
+    }
+
+    void written(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void failedWriterRemoved() {
+        failedWriterRemovals.increment();
+    }
+
+    void broadcastTook(long nanos) {
+        fanout.record(nanos);
+    }
+
+    // A session's queue grew to depth
+    void queued(int depth) {
+        queuedMessages.increment();
+        if (depth > maxQueueDepth.get()) {
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    // A message left a queue, written if it is going to the socket rather than dropped
+    void dequeued(boolean written) {
+        queuedMessages.decrement();
+        if (written) {
+            messagesOut.increment();
+        }
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    public long getRegistrations() {
+        return registrations.sum();
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getFailedWriterRemovals() {
+        return failedWriterRemovals.sum();
+    }
+
+    public long getQueuedMessages() {
+        return queuedMessages.sum();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getBroadcasts() {
+        return fanout.count();
+    }
+
+    // Fan-out time of one broadcast at the given fraction (0.5, 0.99...), in nanoseconds
+    public long getFanoutNanos(double fraction) {
+        return fanout.percentile(fraction);
+    }
+
+    public long getMaxFanoutNanos() {
+        return fanout.max();
+    }
+
+    public double getMeanFanoutNanos() {
+        return fanout.mean();
+    }
+}
@@ -0,0 +1,171 @@
+package minichat.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Read-only view of a server's metrics and gauges, for JMX and the Stats command. Every
+// getter sums its counters on the spot; nothing is computed unless someone asks.
+final class ServerStats implements ServerStatsMBean {
+    private static final EventLog LOG = EventLog.get();
+
+    private final ServerMetrics metrics;
+    private final SessionRegistry registry;
+    private final OutboundConfig outboundConfig;
+
+    ServerStats(ServerMetrics metrics, SessionRegistry registry, OutboundConfig outboundConfig) {
+        this.metrics = metrics;
+        this.registry = registry;
+        this.outboundConfig = outboundConfig;
+    }
+
+    // Publish on the platform MBean server, returns the name to unregister with (null if that failed)
+    ObjectName register(int port) {
+        try {
+            ObjectName name = new ObjectName("minichat:type=Server,port=" + port);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            return name;
+        } catch (JMException e) {
+            LOG.warn("Metrics not published over JMX: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // Already gone
+        }
+    }
+
+    // "name: value" lines for the Stats command
+    List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        lines.add("users: " + getUsers() + " in " + getRooms() + (getRooms() == 1 ? " room" : " rooms"));
+        lines.add("connections accepted: " + getConnectionsAccepted());
+        lines.add("registrations: " + getRegistrations());
+        lines.add("messages in: " + getMessagesIn() + " (" + getBytesIn() + " bytes)");
+        lines.add("messages out: " + getMessagesOut() + " (" + getBytesOut() + " bytes)");
+        lines.add("broadcasts: " + getBroadcasts() + ", fan-out us mean " + Math.round(getFanoutMeanMicros())
+                + " p50 " + getFanoutP50Micros() + " p99 " + getFanoutP99Micros() + " max " + getFanoutMaxMicros());
+        lines.add("queued messages: " + getQueuedMessages() + " (deepest queue " + getMaxQueueDepth() + ")");
+        lines.add("queue overflows: " + getQueueOverflows() + " (" + outboundConfig.getPolicy().name().toLowerCase() + ")");
+        lines.add("failed writers removed: " + getFailedWriterRemovals());
+        lines.add("log events dropped: " + getLogEventsDropped());
+        String sequencer = registry.describeSequencer();
+        if (sequencer != null) {
+            lines.add("sequencer: " + sequencer);
+        }
+        String cluster = registry.describeCluster();
+        if (cluster != null) {
+            lines.add("cluster " + cluster);
+        }
+        return lines;
+    }
+
+    @Override
+    public int getUsers() {
+        return registry.getUserCount();
+    }
+
+    @Override
+    public int getRooms() {
+        return registry.getRoomCount();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return metrics.getConnectionsAccepted();
+    }
+
+    @Override
+    public long getRegistrations() {
+        return metrics.getRegistrations();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return metrics.getMessagesIn();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return metrics.getMessagesOut();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return metrics.getBytesIn();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return metrics.getBytesOut();
+    }
+
+    @Override
+    public long getFailedWriterRemovals() {
+        return metrics.getFailedWriterRemovals();
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        return metrics.getQueuedMessages();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return metrics.getMaxQueueDepth();
+    }
+
+    // Also counts compressed sessions, which are disconnected whatever the policy
+    @Override
+    public long getQueueOverflows() {
+        long overflows = 0;
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            overflows += outboundConfig.getOverflowCount(policy);
+        }
+        return overflows;
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return metrics.getBroadcasts();
+    }
+
+    @Override
+    public double getFanoutMeanMicros() {
+        return metrics.getMeanFanoutNanos() / 1000;
+    }
+
+    @Override
+    public long getFanoutP50Micros() {
+        return metrics.getFanoutNanos(0.50) / 1000;
+    }
+
+    @Override
+    public long getFanoutP99Micros() {
+        return metrics.getFanoutNanos(0.99) / 1000;
+    }
+
+    @Override
+    public long getFanoutMaxMicros() {
+        return metrics.getMaxFanoutNanos() / 1000;
+    }
+
+    @Override
+    public long getLogEventsDropped() {
+        return LOG.getDroppedCount();
+    }
+}
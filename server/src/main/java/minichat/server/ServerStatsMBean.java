@@ -0,0 +1,41 @@
+package minichat.server;
+
+// What a server exposes over JMX, as minichat:type=Server,port=<port>.
+// Times are in microseconds.
+public interface ServerStatsMBean {
+    int getUsers();
+
+    int getRooms();
+
+    long getConnectionsAccepted();
+
+    long getRegistrations();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFailedWriterRemovals();
+
+    long getQueuedMessages();
+
+    int getMaxQueueDepth();
+
+    long getQueueOverflows();
+
+    long getBroadcasts();
+
+    double getFanoutMeanMicros();
+
+    long getFanoutP50Micros();
+
+    long getFanoutP99Micros();
+
+    long getFanoutMaxMicros();
+
+    long getLogEventsDropped();
+}
@@ -0,0 +1,28 @@
+package minichat.server;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+// Where the server writes text for one connected client
+public interface SessionOutput extends Closeable {
+    // Write a line followed by a newline
+    void println(String line);
+
+    // Write text as-is
+    void print(String text);
+
+    // Write already-encoded bytes. The buffer may be shared by many sessions at once,
+    // so implementations must neither modify it nor move its position.
+    void send(ByteBuffer data);
+
+    // From now on a full queue disconnects the session whatever the overflow policy, so
+    // nothing queued for it is ever dropped. Outputs without a queue have nothing to do.
+    default void disconnectOnOverflow() {
+    }
+
+    // True once a write has failed or the connection is gone
+    boolean checkError();
+
+    @Override
+    void close();
+}
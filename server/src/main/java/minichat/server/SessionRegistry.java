@@ -1,126 +1,750 @@
 package minichat.server;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZonedDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import minichat.protocol.FrameBuilder;
+import minichat.protocol.Protocol;
 
 public class SessionRegistry {
+    public static final String DEFAULT_ROOM = "Main Lobby";
+    public static final int MAX_ROOM_NAME_LENGTH = 32;
+    // Marks private message lines: "HH:mm:ss [private] from -> to: text"
+    public static final String PRIVATE_TAG = "[private]";
+
+    // Every registered user by name, keeps usernames unique across rooms
     private final ConcurrentHashMap<String, ClientSession> sessions;
-    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
-    private static final DateTimeFormatter FULL_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy");
+    // Rooms by name. Joins and leaves lock only the room they change, so busy rooms never
+    // contend with each other. The map's own bin locks are monitors, which pin a virtual
+    // thread, so nothing that sends or waits on the journal runs inside its compute() calls.
+    private final ConcurrentHashMap<String, Room> rooms;
+    // Rooms compress broadcasts once for all compressed members, unless queues may drop messages
+    private final boolean shareCompression;
+    // Durable record of room broadcasts, replayed to clients entering a room (null if not configured)
+    private final MessageJournal journal;
+    // Batches presence announcements and roster deltas during join/leave storms
+    private final PresenceCoalescer coalescer;
+    // Splits broadcasts to large rooms over the cores (null with one core)
+    private final ParallelFanout fanout;
+    // Puts room broadcasts in one global order (null: each goes out on its own thread)
+    private final BroadcastSequencer sequencer;
+    // Live counters shared with the server's handlers and writers, and their read-only view
+    private final ServerMetrics metrics;
+    private final ServerStats stats;
+    // Links to the other nodes of a cluster (null when this server runs alone). Set once,
+    // before the server accepts anyone.
+    private Cluster cluster;
+    private static final EventLog LOG = EventLog.get();
+    // -Dminichat.history.backfill, recent messages from memory sent to someone entering a room
+    // (ignored when the journal replays history instead)
+    private static final int BACKFILL = Integer.getInteger("minichat.history.backfill", 0);
+    // -Dminichat.users.page, users per AllUsers page
+    static final int USERS_PAGE = Math.max(1, Integer.getInteger("minichat.users.page", 100));
 
     public SessionRegistry() {
+        this(OutboundConfig.fromSystemProperties());
+    }
+
+    public SessionRegistry(OutboundConfig outboundConfig) {
+        this(outboundConfig, null, new ServerMetrics());
+    }
+
+    SessionRegistry(OutboundConfig outboundConfig, MessageJournal journal, ServerMetrics metrics) {
+        this.journal = journal;
+        this.metrics = metrics;
+        this.stats = new ServerStats(metrics, this, outboundConfig);
         this.sessions = new ConcurrentHashMap<>();
+        this.rooms = new ConcurrentHashMap<>();
+        this.shareCompression = outboundConfig.getPolicy() == OverflowPolicy.DISCONNECT;
+        this.coalescer = PresenceCoalescer.fromSystemProperties(this);
+        this.fanout = ParallelFanout.fromSystemProperties();
+        this.sequencer = BroadcastSequencer.fromSystemProperties(this, journal);
+        rooms.put(DEFAULT_ROOM, new Room(DEFAULT_ROOM, shareCompression));
+    }
+
+    // Bind the cluster listener; the links come up once the cluster is started
+    Cluster joinCluster(ClusterConfig config) throws IOException {
+        cluster = new Cluster(config, this);
+        return cluster;
     }
 
-    // Inner class holds client session data
-    private static class ClientSession {
-        final PrintWriter writer;
-        final Instant joinedAt;
+    // Add new user to registry (in the default room), false if the username is already taken.
+    // putIfAbsent is atomic, so no monitor is held (which would pin a virtual thread)
+    public boolean add(String username, SessionOutput writer, Instant joinedAt) {
+        return add(username, writer, joinedAt, false);
+    }
+
+    // Same, for a client that negotiated binary framing. Pass a DeflatingOutput as the
+    // writer if it also negotiated compression. Waits for the cluster, see register().
+    public boolean add(String username, SessionOutput writer, Instant joinedAt, boolean binary) {
+        return register(username, writer, joinedAt, binary).join();
+    }
 
-        ClientSession(PrintWriter writer, Instant joinedAt) {
-            this.writer = writer;
-            this.joinedAt = joinedAt;
+    // Add without waiting: in a cluster the name's owner node must agree too, a link round
+    // trip an NIO event loop cannot sit out. Completes (false if the name is taken) once the
+    // user is in the default room, on whichever thread got the owner's answer.
+    CompletableFuture<Boolean> register(String username, SessionOutput writer, Instant joinedAt, boolean binary) {
+        ClientSession session = new ClientSession(username, writer, joinedAt, binary);
+        if (sessions.putIfAbsent(username, session) != null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (cluster == null) {
+            registered(session);
+            return CompletableFuture.completedFuture(true);
         }
+        return cluster.claim(username).thenApply(granted -> {
+            if (!granted) {
+                sessions.remove(username, session);
+                return false;
+            }
+            registered(session);
+            return true;
+        });
     }
 
-    // Add new user to registry
-    public synchronized boolean add(String username, PrintWriter writer, Instant joinedAt) {
-        if (sessions.containsKey(username)) {
-            return false; // Username already taken
+    private void registered(ClientSession session) {
+        metrics.registered();
+        enterRoom(session, DEFAULT_ROOM);
+        if (cluster != null) {
+            cluster.userAdded(session, DEFAULT_ROOM);
         }
-        sessions.put(username, new ClientSession(writer, joinedAt));
-        return true;
     }
 
     // Remove user from registry
     public void remove(String username) {
-        sessions.remove(username);
+        ClientSession session = sessions.remove(username);
+        if (session != null) {
+            leaveRoom(session);
+            leftCluster(session);
+        }
     }
 
-    // Broadcast server message to all users
-    public void broadcastServer(String text) {
-        String timestamp = LocalDateTime.now().format(TIME_FORMAT);
-        broadcast(timestamp + " Server: " + text);
+    // Remove user only if still registered with this output, so a handler cleaning up late
+    // cannot evict someone who has since registered the same name. False if it was not.
+    public boolean remove(String username, SessionOutput writer) {
+        ClientSession session = sessions.get(username);
+        if (session != null && session.writer == writer && sessions.remove(username, session)) {
+            leaveRoom(session);
+            leftCluster(session);
+            return true;
+        }
+        return false;
     }
 
-    // Broadcast a message from specific user
-    public void broadcastFrom(String username, String text) {
-        String timestamp = LocalDateTime.now().format(TIME_FORMAT);
-        broadcast(timestamp + " " + username + ": " + text);
+    // The cluster kept a user of another node by this name after a partition: disconnect ours
+    // (unless it has left, and the name been registered again, meanwhile)
+    void evict(String username, Instant joinedAt) {
+        ClientSession session = sessions.get(username);
+        // Link frames carry the time in milliseconds
+        if (session == null || session.joinedAt.toEpochMilli() != joinedAt.toEpochMilli()
+                || !sessions.remove(username, session)) {
+            return;
+        }
+        leaveRoom(session);
+        leftCluster(session);
+        LOG.warn("Evicted {}, the name is registered on another node", username);
+        session.writer.close();
     }
 
-    // Internal broadcast
-    private void broadcast(String message) {
-        List<String> failedUsers = new ArrayList<>();
+    private void leftCluster(ClientSession session) {
+        if (cluster != null) {
+            cluster.userRemoved(session.username);
+        }
+    }
 
-        // Create snapshot to avoid concurrently modifying
-        Map<String, ClientSession> snapshot = new HashMap<>(sessions);
+    // Move a user to another room, creating it if needed.
+    // Returns the room they left, or null if the user is unknown or already there.
+    public String join(String username, String roomName) {
+        ClientSession session = sessions.get(username);
+        if (session == null) {
+            return null;
+        }
+        Room previous = session.room;
+        if (previous != null && previous.name.equals(roomName)) {
+            return null;
+        }
+        leaveRoom(session);
+        enterRoom(session, roomName);
+        if (cluster != null) {
+            cluster.userMoved(username, roomName);
+        }
+        return previous != null ? previous.name : null;
+    }
 
-        for (Map.Entry<String, ClientSession> entry : snapshot.entrySet()) {
-            try {
-                entry.getValue().writer.println(message);
-                entry.getValue().writer.flush();
+    private void enterRoom(ClientSession session, String roomName) {
+        Room room = lockRoom(roomName);
+        try {
+            addMember(room, session);
+            session.room = room;
+            if (room.sendRosterUpdate(RosterUpdate.added(room.rosterVersion(), session), session,
+                    coalescer.isStorming())) {
+                coalescer.scheduleFlush();
+            }
+            if (session.presence) {
+                sendRoster(room, session);
+            }
+        } finally {
+            room.unlock();
+        }
+    }
+
+    // The room, created if needed, with its lock held. One found closed was dropped while we
+    // waited for its lock, so it is looked up (or created) again.
+    private Room lockRoom(String roomName) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(roomName, this::newRoom);
+            room.lock();
+            if (!room.isClosed()) {
+                return room;
+            }
+            room.unlock();
+        }
+    }
 
-                // Check if write actually failed (connection closed)
-                if (entry.getValue().writer.checkError()) {
-                    failedUsers.add(entry.getKey());
+    // Inside computeIfAbsent(), so another node's user arriving meanwhile waits for the room
+    private Room newRoom(String name) {
+        Room room = new Room(name, shareCompression);
+        if (cluster != null) {
+            for (ClientSession remote : cluster.remoteMembers(name)) {
+                room.addRemote(remote);
+            }
+        }
+        return room;
+    }
+
+    // The newcomer is first sent the room's recent messages from the journal. Appends wait
+    // meanwhile, so nothing said before they became a member is missed (a broadcast racing
+    // the join can show up both in the replay and live).
+    private void addMember(Room room, ClientSession session) {
+        if (journal == null) {
+            if (BACKFILL > 0 && room.history != null) {
+                // Best effort: a message broadcast while this runs can be missed
+                for (ByteBuffer message : room.history.recent(BACKFILL, session.binary)) {
+                    session.writer.send(message);
                 }
-            } catch (Exception e) {
-                failedUsers.add(entry.getKey());
             }
+            room.add(session);
+            return;
+        }
+        journal.lock();
+        try {
+            for (ByteBuffer message : journal.recent(room.name, session.binary)) {
+                session.writer.send(message);
+            }
+            room.add(session);
+        } finally {
+            journal.unlock();
         }
+    }
 
-        // Remove failed users
-        for (String username : failedUsers) {
-            sessions.remove(username);
-            System.err.println("Removed failed user: " + username);
+    // Empty rooms other than the default one are dropped
+    private void leaveRoom(ClientSession session) {
+        Room room = session.room;
+        if (room == null) {
+            return;
         }
+        room.lock();
+        try {
+            if (room.remove(session) && room.sendRosterUpdate(
+                    RosterUpdate.removed(room.rosterVersion(), session), session, coalescer.isStorming())) {
+                coalescer.scheduleFlush();
+            }
+            if (!room.isClosed() && room.isEmpty() && !room.name.equals(DEFAULT_ROOM)) {
+                // Under the room's lock, so nobody enters it (and gets journaled) before this
+                rooms.remove(room.name, room);
+                room.close();
+                if (journal != null) {
+                    journal.forget(room.name);
+                }
+            }
+        } finally {
+            room.unlock();
+        }
+        session.room = null;
     }
 
-    // Send list of active users to specific user
-    public void sendUserList(String requester, PrintWriter writer) {
-        StringBuilder sb = new StringBuilder();
+    // "Presence": subscribe a user to their room's roster. They get a snapshot now (which is
+    // also how a client resyncs after missing a version) and only deltas from then on, and a
+    // new snapshot whenever they enter another room. Unsubscribing just stops all of that.
+    public void setPresence(String username, boolean subscribe) {
+        ClientSession session = sessions.get(username);
+        if (session == null) {
+            return;
+        }
+        Room current = session.room;
+        if (!subscribe || current == null) {
+            session.presence = subscribe;
+            return;
+        }
+        // Under the room's lock, so no membership change slips between snapshot and deltas
+        current.lock();
+        try {
+            session.presence = true;
+            if (session.room == current) {
+                sendRoster(current, session);
+            }
+        } finally {
+            current.unlock();
+        }
+    }
 
-        // Add header with current time
-        String timestamp = LocalDateTime.now().format(TIME_FORMAT);
-        sb.append("\nList of users connected at time: ").append(timestamp).append("\n");
+    // Caller holds the room's lock
+    private static void sendRoster(Room room, ClientSession session) {
+        session.writer.send(RosterUpdate.snapshot(room.name, room.rosterVersion(), room.members(), session.binary));
+    }
 
-        // Get sorted list of usernames for consistent ordering
-        List<String> usernames = new ArrayList<>(sessions.keySet());
-        Collections.sort(usernames);
+    // Name of the room a user is in, or null if not registered
+    public String getRoom(String username) {
+        ClientSession session = sessions.get(username);
+        Room room = session != null ? session.room : null;
+        return room != null ? room.name : null;
+    }
 
-        int index = 1;
-        for (String username : usernames) {
+    // Room names must be 1-32 printable characters
+    public static boolean isValidRoomName(String name) {
+        if (name.isEmpty() || name.length() > MAX_ROOM_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Broadcast server message to every room (of every node in a cluster)
+    public void broadcastServer(String text) {
+        if (cluster != null) {
+            cluster.relayNotice(null, text);
+        }
+        deliverNotice(null, text);
+    }
+
+    // Broadcast server message to one room
+    public void broadcastServer(String roomName, String text) {
+        if (cluster != null) {
+            cluster.relayNotice(roomName, text);
+        }
+        deliverNotice(roomName, text);
+    }
+
+    // A notice for one room, or every room if roomName is null, on this node only
+    void deliverNotice(String roomName, String text) {
+        if (roomName != null) {
+            Room room = rooms.get(roomName);
+            if (room != null) {
+                OutboundMessage message = OutboundMessage.notice(text);
+                broadcast(room, message, true);
+            }
+            return;
+        }
+        OutboundMessage message = OutboundMessage.notice(text);
+        for (Room room : rooms.values()) {
+            broadcast(room, message, true);
+        }
+    }
+
+    // Tell one room that a user arrived or left (Protocol.WELCOME, GOODBYE, JOINED_ROOM, LEFT_ROOM).
+    // During a join/leave storm it goes out later in a digest; the user still hears about
+    // their own arrival right away, clients take that as their confirmation.
+    public void broadcastPresence(String roomName, byte kind, String username) {
+        if (cluster != null) {
+            cluster.relayPresence(roomName, kind, username);
+        }
+        if (!deliverPresence(roomName, kind, username)) {
+            return;
+        }
+        if (kind == Protocol.WELCOME || kind == Protocol.JOINED_ROOM) {
             ClientSession session = sessions.get(username);
-            if (session != null) {
-                // Convert Instant to ZonedDateTime for proper timezone formatting
-                ZonedDateTime joinedDateTime = ZonedDateTime.ofInstant(
-                        session.joinedAt, ZoneId.systemDefault());
-                String joinedFormatted = joinedDateTime.format(FULL_DATE_FORMAT);
+            Room room = session != null ? session.room : null;
+            if (room != null && room.name.equals(roomName)) {
+                sendTo(session, OutboundMessage.presence(kind, username, roomName));
+            }
+        }
+    }
 
-                sb.append("\t").append(index++).append(") ").append(username)
-                        .append(" since ").append(joinedFormatted).append("\n");
+    // The announcement on this node only, true if the coalescer held it for a digest
+    boolean deliverPresence(String roomName, byte kind, String username) {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return false;
+        }
+        if (!coalescer.offer(roomName, kind, username)) {
+            broadcast(room, OutboundMessage.presence(kind, username, roomName), false);
+            return false;
+        }
+        return true;
+    }
+
+    // Digest of a storm's changes of one kind in a room: a single name goes out as a normal
+    // presence message, more as one notice
+    void announce(String roomName, byte kind, List<String> usernames) {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return;
+        }
+        broadcast(room, usernames.size() == 1
+                ? OutboundMessage.presence(kind, usernames.get(0), roomName)
+                : OutboundMessage.notice(PresenceCoalescer.digestText(kind, usernames)), false);
+    }
+
+    // Send the roster deltas rooms held back during a storm
+    void flushRosterUpdates() {
+        for (Room room : rooms.values()) {
+            room.lock();
+            try {
+                room.flushRosterUpdates();
+            } finally {
+                room.unlock();
             }
         }
-        sb.append("\n");
+    }
+
+    // Broadcast a message from specific user to their room
+    public void broadcastFrom(String username, String text) {
+        ClientSession session = sessions.get(username);
+        Room room = session != null ? session.room : null;
+        if (room != null) {
+            // Peers get it first, so one slow local room does not hold up the other nodes
+            if (cluster != null) {
+                cluster.relayChat(room.name, username, text);
+            }
+            OutboundMessage message = OutboundMessage.chat(username, text);
+            broadcast(room, message, true);
+        }
+    }
+
+    // A chat line relayed by another node, for this node's members of the room
+    void deliverChat(String roomName, String sender, String text) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            OutboundMessage message = OutboundMessage.chat(sender, text);
+            broadcast(room, message, true);
+        }
+    }
+
+    // Keep a room's chat or notice (in memory and in the journal) before it goes out
+    void record(Room room, OutboundMessage message) {
+        if (room.history != null) {
+            room.history.add(message);
+        }
+        if (journal != null) {
+            journal.append(room.name, message);
+        }
+    }
+
+    // Private message: one map lookup, written to the target plus an echo to the sender.
+    // Returns false if the target is not registered.
+    public boolean sendDirect(String from, String to, String text) {
+        ClientSession target = sessions.get(to);
+        if (target == null && (cluster == null || !cluster.relayDirect(from, to, text))) {
+            return false;
+        }
 
-        // Send only to requester
+        OutboundMessage message = OutboundMessage.privateMessage(from, to, text);
+        if (target != null) {
+            deliver(target, message);
+        }
+
+        ClientSession sender = sessions.get(from);
+        if (sender != null && sender != target) {
+            deliver(sender, message);
+        }
+        return true;
+    }
+
+    // A private message relayed by the sender's node, for a user of this one
+    void deliverDirect(String from, String to, String text) {
+        ClientSession target = sessions.get(to);
+        if (target != null) {
+            deliver(target, OutboundMessage.privateMessage(from, to, text));
+        }
+    }
+
+    // Another node's user joined, left or moved: listed in the room while this node has it
+    // open (a room opened later picks them up from the cluster). Only touches the room's name
+    // index, so it can stay in computeIfPresent(), ordered against the room being created.
+    void addRemote(ClientSession session, String roomName) {
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            room.addRemote(session);
+            return room;
+        });
+    }
+
+    void removeRemote(ClientSession session, String roomName) {
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            room.removeRemote(session);
+            return room;
+        });
+    }
+
+    void moveRemote(ClientSession session, String from, String to) {
+        removeRemote(session, from);
+        addRemote(session, to);
+    }
+
+    // This node's users, as a new link is told about them
+    Collection<ClientSession> localSessions() {
+        return sessions.values();
+    }
+
+    // This node's user by that name, null if there is none
+    ClientSession localSession(String username) {
+        return sessions.get(username);
+    }
+
+    // Still registered here, not removed (or re-registered) meanwhile
+    boolean isRegistered(ClientSession session) {
+        return sessions.get(session.username) == session;
+    }
+
+    // A server line for one user, after any broadcast their own actions handed to the sequencer
+    public void sendServerNotice(String username, String text) {
+        ClientSession session = sessions.get(username);
+        if (session != null) {
+            sendTo(session, OutboundMessage.notice(text));
+        }
+    }
+
+    // To one user, in order with the broadcasts before it: through the sequencer if there is one
+    private void sendTo(ClientSession session, OutboundMessage message) {
+        if (sequencer == null || sequencer.publish(session, message) < 0) {
+            deliver(session, message);
+        }
+    }
+
+    void deliver(ClientSession session, OutboundMessage message) {
+        boolean ok;
         try {
-            writer.print(sb.toString());
-            writer.flush();
+            session.writer.send(message.encoded(session.binary));
+            ok = !session.writer.checkError();
+        } catch (Exception e) {
+            ok = false;
+        }
+        if (!ok) {
+            removeFailed(session);
+        }
+    }
+
+    // Internal broadcast, recorded first if record is set: handed to the sequencer if there is
+    // one, otherwise fanned out on this thread
+    private void broadcast(Room room, OutboundMessage message, boolean record) {
+        if (sequencer != null && sequencer.publish(room, message, record) >= 0) {
+            return;
+        }
+        if (record) {
+            record(room, message);
+        }
+        fanOut(room, message);
+    }
+
+    // Only queues on each member, so it never waits on a slow client
+    void fanOut(Room room, OutboundMessage message) {
+        FanoutEvent event = new FanoutEvent();
+        event.begin();
+        long started = System.nanoTime();
+        List<ClientSession> failedSessions = room.broadcast(message, fanout);
+        metrics.broadcastTook(System.nanoTime() - started);
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = room.name;
+            event.recipients = room.size();
+            event.failed = failedSessions != null ? failedSessions.size() : 0;
+            event.bytes = message.encoded(false).remaining();
+            event.commit();
+        }
+        if (failedSessions == null) {
+            return;
+        }
+
+        for (ClientSession session : failedSessions) {
+            removeFailed(session);
+        }
+    }
+
+    // Remove a failed user (unless the name has been re-registered meanwhile)
+    private void removeFailed(ClientSession session) {
+        boolean removed = sessions.remove(session.username, session);
+        // Leave even if already unregistered, in case a join raced with an earlier removal
+        leaveRoom(session);
+        if (removed) {
+            leftCluster(session);
+            metrics.failedWriterRemoved();
+            LOG.warn("Removed failed user: {}", session.username);
+        }
+    }
+
+    // Send the first page of users in the requester's room
+    public void sendUserList(String requester, SessionOutput writer) {
+        sendUserList(requester, writer, "", 1);
+    }
+
+    // Send one page (USERS_PAGE users, from 1) of the users in the requester's room whose
+    // names start with prefix, in name order. Walks the room's sorted index up to the end of
+    // the page, not the whole room, and every entry's text is rendered already.
+    public void sendUserList(String requester, SessionOutput writer, String prefix, int page) {
+        ClientSession requesterSession = sessions.get(requester);
+        Room room = requesterSession != null ? requesterSession.room : null;
+        long skip = (long) (page - 1) * USERS_PAGE;
+        // One past the page tells whether there is a next one
+        List<ClientSession> members = room != null
+                ? room.membersByName(prefix, skip, USERS_PAGE + 1)
+                : Collections.emptyList();
+        boolean more = members.size() > USERS_PAGE;
+        if (more) {
+            members = members.subList(0, USERS_PAGE);
+        }
+        boolean binary = requesterSession != null && requesterSession.binary;
+
+        try {
+            if (binary) {
+                // Where the page starts in the list, and whether another page follows
+                FrameBuilder frame = new FrameBuilder(Protocol.USER_LIST, 25 + members.size() * 24)
+                        .putLong(System.currentTimeMillis())
+                        .putString(room != null ? room.name : "")
+                        .putLong(skip)
+                        .putByte(more ? 1 : 0)
+                        .putInt(members.size());
+                for (ClientSession session : members) {
+                    frame.putString(session.username).putLong(session.joinedAt.toEpochMilli());
+                }
+                writer.send(frame.build());
+            } else {
+                StringBuilder sb = new StringBuilder(64 + members.size() * 64);
+
+                // Add header with current time
+                String timestamp = WallClock.time();
+                sb.append("\nList of users connected at time: ").append(timestamp).append("\n");
+
+                long index = skip + 1;
+                for (ClientSession session : members) {
+                    sb.append("\t").append(index++).append(") ").append(session.listEntry).append("\n");
+                }
+                sb.append("\n");
+
+                // Send only to requester
+                writer.print(sb.toString());
+            }
+
+            String query = prefix.isEmpty() ? "AllUsers " : "AllUsers " + prefix + " ";
+            if (more) {
+                writer.send(OutboundMessage.notice("More users: " + query + (page + 1)).encoded(binary));
+            } else if (members.isEmpty() && page > 1) {
+                writer.send(OutboundMessage.notice("No users on page " + page).encoded(binary));
+            } else if (members.isEmpty() && !prefix.isEmpty()) {
+                writer.send(OutboundMessage.notice("No users starting with " + prefix).encoded(binary));
+            }
         } catch (Exception e) {
-            System.err.println("Failed to send user list to " + requester);
+            LOG.warn("Failed to send user list to {}", requester);
         }
     }
 
-    // Close all sessions (for server shutdown)
+    // Send the list of rooms and how many users each has
+    public void sendRoomList(String requester, SessionOutput writer) {
+        List<Room> snapshot = new ArrayList<>(rooms.values());
+        snapshot.sort(Comparator.comparing(room -> room.name));
+
+        ClientSession requesterSession = sessions.get(requester);
+        if (requesterSession != null && requesterSession.binary) {
+            FrameBuilder frame = new FrameBuilder(Protocol.ROOM_LIST, 12 + snapshot.size() * 24)
+                    .putLong(System.currentTimeMillis())
+                    .putInt(snapshot.size());
+            for (Room room : snapshot) {
+                frame.putString(room.name).putInt(room.size());
+            }
+            writer.send(frame.build());
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        String timestamp = WallClock.time();
+        sb.append("\nList of rooms at time: ").append(timestamp).append("\n");
+
+        int index = 1;
+        for (Room room : snapshot) {
+            int size = room.size();
+            sb.append("\t").append(index++).append(") ").append(room.name)
+                    .append(" (").append(size).append(size == 1 ? " user)" : " users)").append("\n");
+        }
+        sb.append("\n");
+
+        writer.print(sb.toString());
+    }
+
+    // Send the server's metrics, as one notice per line to binary clients
+    public void sendStats(String requester, SessionOutput writer) {
+        ClientSession session = sessions.get(requester);
+        boolean binary = session != null && session.binary;
+        List<String> lines = stats.lines();
+        if (binary) {
+            writer.send(OutboundMessage.notice("Server stats:").encoded(true));
+            for (String line : lines) {
+                writer.send(OutboundMessage.notice(line).encoded(true));
+            }
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("\nServer stats at time: ").append(WallClock.time()).append("\n");
+        for (String line : lines) {
+            sb.append("\t").append(line).append("\n");
+        }
+        sb.append("\n");
+        writer.print(sb.toString());
+    }
+
+    // Send the last count messages of the requester's room, after a notice saying how many
+    public void sendHistory(String requester, SessionOutput writer, int count) {
+        ClientSession session = sessions.get(requester);
+        Room room = session != null ? session.room : null;
+        if (room == null) {
+            return;
+        }
+        if (room.history == null) {
+            writer.send(OutboundMessage.notice("This server keeps no room history").encoded(session.binary));
+            return;
+        }
+        List<ByteBuffer> messages = room.history.recent(count, session.binary);
+        String header = messages.isEmpty() ? "No messages in " + room.name + " yet"
+                : messages.size() == 1 ? "Last message in " + room.name + ":"
+                : "Last " + messages.size() + " messages in " + room.name + ":";
+        writer.send(OutboundMessage.notice(header).encoded(session.binary));
+        for (ByteBuffer message : messages) {
+            writer.send(message);
+        }
+    }
+
+    // Messages held in the rooms' in-memory history
+    public int getHistorySize() {
+        int size = 0;
+        for (Room room : rooms.values()) {
+            if (room.history != null) {
+                size += room.history.size();
+            }
+        }
+        return size;
+    }
+
+    // Encoded bytes held in the rooms' in-memory history (each message in both wire formats)
+    public long getHistoryBytes() {
+        long bytes = 0;
+        for (Room room : rooms.values()) {
+            if (room.history != null) {
+                bytes += room.history.bytes();
+            }
+        }
+        return bytes;
+    }
+
+    // Close all sessions (for server shutdown), once the sequencer has sent what it holds
     public void closeAll() {
+        if (sequencer != null) {
+            sequencer.close();
+        }
         for (Map.Entry<String, ClientSession> entry : sessions.entrySet()) {
             try {
                 entry.getValue().writer.close();
@@ -129,15 +753,54 @@ public class SessionRegistry {
             }
         }
         sessions.clear();
+        for (Room room : rooms.values()) {
+            room.close();
+        }
+        rooms.clear();
+        rooms.put(DEFAULT_ROOM, new Room(DEFAULT_ROOM, shareCompression));
     }
 
-    // Get count of active users
+    // Counters this registry and the server's connections update
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // The metrics with the registry's gauges, as published over JMX
+    ServerStats getStats() {
+        return stats;
+    }
+
+    // Broadcasts and batches the sequencer went through, null when there is none
+    String describeSequencer() {
+        if (sequencer == null) {
+            return null;
+        }
+        long batches = sequencer.getBatches();
+        return sequencer.getSequenced() + " broadcasts in " + batches + (batches == 1 ? " batch" : " batches");
+    }
+
+    // The cluster links in a line, null when not clustered
+    String describeCluster() {
+        return cluster != null ? cluster.describe() : null;
+    }
+
+    // Get count of active users (on this node)
     public int getUserCount() {
         return sessions.size();
     }
 
+    // Get count of open rooms
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
     // Check if user exists
     public boolean hasUser(String username) {
         return sessions.containsKey(username);
     }
+
+    // Someone has the name, here or on another node of the cluster
+    boolean isTaken(String username) {
+        return sessions.containsKey(username) || (cluster != null && cluster.hasRemoteUser(username));
+    }
 }
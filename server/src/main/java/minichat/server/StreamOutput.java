@@ -0,0 +1,173 @@
+package minichat.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Blocking socket output. Callers only queue; a drain task on the writer executor does the
+// blocking writes, so a client with a full receive window stalls nobody but itself.
+// At most one drain runs per session, which keeps messages in order without a lock.
+//
+// A drain copies whatever is queued into one batch buffer and writes it with a single call,
+// so a burst costs one write per batch rather than one per message. With a flush delay,
+// the drain waits for the delay (or for flushBytes to pile up) to catch more of the burst.
+class StreamOutput implements SessionOutput {
+    private final OutputStream stream;
+    private final OutboundQueue queue;
+    private final Executor writers;
+    private final ServerMetrics metrics;
+    private final long flushDelayNanos;
+    private final int batchCapacity;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean timerArmed = new AtomicBoolean();
+    // Created by the first drain that finds more than one message queued
+    private byte[] batch;
+    private int batchLength;
+    private volatile boolean error;
+
+    StreamOutput(OutputStream stream, OutboundConfig config, Executor writers, ServerMetrics metrics) {
+        this.stream = stream;
+        this.queue = new OutboundQueue(config, metrics);
+        this.writers = writers;
+        this.metrics = metrics;
+        this.flushDelayNanos = config.getFlushDelayNanos();
+        this.batchCapacity = Math.max(1024, config.getFlushBytes());
+    }
+
+    @Override
+    public void println(String line) {
+        print(line + "\n");
+    }
+
+    @Override
+    public void print(String text) {
+        send(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Queue bytes for the writer, never blocks
+    @Override
+    public void send(ByteBuffer data) {
+        if (error) {
+            return;
+        }
+        if (!queue.offer(data)) {
+            fail();
+            return;
+        }
+        if (queue.isFlushDue()) {
+            scheduleDrain();
+        } else if (timerArmed.compareAndSet(false, true)) {
+            FlushTimer.schedule(this::onFlushDelay, flushDelayNanos);
+        }
+    }
+
+    @Override
+    public void disconnectOnOverflow() {
+        queue.disconnectOnOverflow();
+    }
+
+    private void onFlushDelay() {
+        timerArmed.set(false);
+        if (!queue.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                writers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                fail();
+            }
+        }
+    }
+
+    // Writer task: write everything queued, then flush once
+    private void drain() {
+        try {
+            ByteBuffer next;
+            while ((next = queue.poll()) != null) {
+                if (batchLength == 0 && queue.isEmpty() && next.hasArray()) {
+                    // Nothing to gather: read straight from the (possibly shared) array, position untouched
+                    write(next.array(), next.arrayOffset() + next.position(), next.remaining());
+                } else {
+                    append(next.duplicate());
+                }
+            }
+            writeBatch();
+            stream.flush();
+        } catch (IOException e) {
+            fail();
+            return;
+        } finally {
+            draining.set(false);
+        }
+        // Something may have been queued after the last poll but before draining was cleared
+        if (!queue.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    // Copy into the batch, writing it out whenever it fills up. Also how direct buffers
+    // (journal replay) get written, an OutputStream cannot read from them.
+    private void append(ByteBuffer data) throws IOException {
+        if (batch == null) {
+            batch = new byte[batchCapacity];
+        }
+        while (data.hasRemaining()) {
+            if (batchLength == batch.length) {
+                writeBatch();
+            }
+            int count = Math.min(batch.length - batchLength, data.remaining());
+            data.get(batch, batchLength, count);
+            batchLength += count;
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        if (batchLength > 0) {
+            write(batch, 0, batchLength);
+            batchLength = 0;
+        }
+    }
+
+    // A blocking write, traced if the client was slow to take it
+    private void write(byte[] data, int offset, int length) throws IOException {
+        RecipientWriteEvent event = new RecipientWriteEvent();
+        event.begin();
+        stream.write(data, offset, length);
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = "socket";
+            event.bytes = length;
+            event.commit();
+        }
+        metrics.written(length);
+    }
+
+    // Drop the client, its read loop then fails and runs the normal cleanup
+    private void fail() {
+        error = true;
+        queue.clear();
+        close();
+    }
+
+    @Override
+    public boolean checkError() {
+        return error;
+    }
+
+    @Override
+    public void close() {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
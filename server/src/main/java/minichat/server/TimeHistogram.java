@@ -0,0 +1,84 @@
+package minichat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Concurrent histogram of durations in nanoseconds for the live metrics: four buckets per
+// power of two, so a percentile is reported within about 20%. Every bucket is a LongAdder,
+// recording threads never contend on one counter and reading it never stops them.
+final class TimeHistogram {
+    private static final int PER_OCTAVE = 4;
+    // Values below this get a bucket each
+    private static final int LINEAR = 2 * PER_OCTAVE;
+
+    private final LongAdder[] buckets = new LongAdder[LINEAR + 62 * PER_OCTAVE];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    TimeHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets[index(value)].increment();
+        total.increment();
+        sum.add(value);
+        // Racy, but only a new maximum writes, and a lost one is soon replaced by the next
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    // Upper bound of the bucket holding the given fraction of values, 0 when empty.
+    // Values recorded while this runs may or may not be included.
+    long percentile(double fraction) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        // Shift that leaves the top three bits: 4..7
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 2;
+        return LINEAR + (shift - 1) * PER_OCTAVE + (int) (value >>> shift) - PER_OCTAVE;
+    }
+
+    // Largest value that falls into bucket index
+    private static long highest(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / PER_OCTAVE + 1;
+        long top = (index - LINEAR) % PER_OCTAVE + PER_OCTAVE;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,68 @@
+package minichat.server;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// The server's "HH:mm:ss" time of day, formatted once per second and shared. The first
+// caller in a new second formats it and publishes text and bytes together; everyone else in
+// that second reads the published copy, so stamping a line costs no date arithmetic and no
+// allocation. Callers racing over a second boundary may both format it, which is harmless.
+final class WallClock {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    // Bytes in the stamp, it is always ASCII
+    static final int TIME_BYTES = 8;
+
+    private static final class Second {
+        final long second;
+        final String text;
+        final byte[] bytes;
+
+        Second(long second, String text) {
+            this.second = second;
+            this.text = text;
+            this.bytes = text.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static volatile Second current = format(System.currentTimeMillis());
+
+    private WallClock() {
+    }
+
+    // "HH:mm:ss" now
+    static String time() {
+        return at(System.currentTimeMillis()).text;
+    }
+
+    // "HH:mm:ss" at the given epoch millis
+    static String time(long epochMillis) {
+        return at(epochMillis).text;
+    }
+
+    // Copy the stamp for epochMillis into target at offset, returns the offset after it
+    static int putTime(long epochMillis, byte[] target, int offset) {
+        System.arraycopy(at(epochMillis).bytes, 0, target, offset, TIME_BYTES);
+        return offset + TIME_BYTES;
+    }
+
+    private static Second at(long epochMillis) {
+        Second published = current;
+        long second = Math.floorDiv(epochMillis, 1000L);
+        if (published.second == second) {
+            return published;
+        }
+        Second formatted = format(epochMillis);
+        // Only move forward, a stamp for an older message must not replace the current one
+        if (second > published.second) {
+            current = formatted;
+        }
+        return formatted;
+    }
+
+    private static Second format(long epochMillis) {
+        return new Second(Math.floorDiv(epochMillis, 1000L),
+                Instant.ofEpochMilli(epochMillis).atZone(ZoneId.systemDefault()).format(TIME_FORMAT));
+    }
+}